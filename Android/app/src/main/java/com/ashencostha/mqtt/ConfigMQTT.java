@@ -13,25 +13,42 @@ public class ConfigMQTT {
     public static String mqttServer   = "tcp://broker.emqx.io:1883";
     public static String userName     = "";   // vacío si usás broker público sin auth
     public static String userPass     = "";
+    // Base del clientId. Cada instalación le agrega un sufijo propio (ver
+    // MainActivity.clientId()): el broker ata la sesión persistente al
+    // clientId, y con uno fijo todos los celus compartirían la misma.
     public static String CLIENT_ID    = "android_famico_sequencer";
 
+    // Sesión persistente: el broker recuerda suscripciones y mensajes QoS 1/2
+    // entre reconexiones, y los publish en vuelo se guardan en disco.
+    // Al retomarla no se re-suscribe, así que los retained no se reenvían:
+    // el último estado lo da LastValueCache. Necesita un clientId por
+    // instalación.
+    public static boolean durableSession = true;
+
     // ================================
     //             TOPICS
     // ================================
     public static String topicStatus        = "/simulator/status";   // estado actual del ESP
     public static String topicReceiveMatrix = "/simulator/cellval";  // matriz que manda el ESP (cuando la implementes)
+    public static String topicMatrixState   = "/simulator/matrix";   // última matriz del ESP (retained)
 
     // Android → ESP32
     public static String topicState      = "/simulator/state";    // "PLAY_ALL", "IDLE", "EDIT", "PLAY_LINE"
     public static String topicTempo      = "/simulator/tempo";    // tempo (BPM o ms)
-    public static String topicEdit       = "/simulator/edit";     // "r c v"
+    public static String topicEdit       = "/simulator/edit";     // "r c v" o lote "r c v;r c v"
     public static String topicPlayRow    = "/simulator/playrow";  // "r"
     public static String topicSendMatrix = "/simulator/getcell";  // matriz completa enviada desde el celu
+    public static String topicPing       = "/simulator/ping";     // "P <nanos>", el ESP lo devuelve en topicPong
+    public static String topicPong       = "/simulator/pong";     // eco del ping (ESP -> Android)
+
+    // El formato de la matriz (texto o binario) es de cada equipo: ver SequencerDevice
+
     public static void useServerSequencer() {
         mqttServer   = "tcp://broker.emqx.io:1883";
         userName     = "";
         userPass     = "";
         CLIENT_ID    = "android_famico_sequencer";
+        durableSession = true;
 
         topicStatus        = "/simulator/status";
         topicState         = "/simulator/state";
@@ -40,5 +57,21 @@ public class ConfigMQTT {
         topicPlayRow       = "/simulator/playrow";
         topicSendMatrix    = "/simulator/getcell";
         topicReceiveMatrix = "/simulator/cellval";
+        topicMatrixState   = "/simulator/matrix";
+        topicPing          = "/simulator/ping";
+        topicPong          = "/simulator/pong";
+    }
+
+    // ================================
+    //       BROKER LOCAL (LAN)
+    // ================================
+    // La app levanta su propio broker (LocalBroker) y se conecta a sí misma;
+    // el ESP32 apunta a la IP del celu en la red local. Los topics no cambian.
+    public static void useLocalBroker(int port) {
+        mqttServer   = "tcp://127.0.0.1:" + port;
+        userName     = "";
+        userPass     = "";
+        // LocalBroker no guarda sesiones: siempre arranca limpia
+        durableSession = false;
     }
 }
@@ -0,0 +1,137 @@
+package com.ashencostha.mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Varios secuenciadores sobre una sola conexión MQTT.
+// Cada equipo tiene su espacio de topics (ver SequencerDevice); el registro
+// suscribe el estado de cada uno en la conexión compartida y recuerda el
+// último que reportó. Los comandos para todos van por "/simulator/all/...":
+// un solo publish, sin recorrer los equipos de a uno. La matriz y las
+// ediciones van sólo al equipo que se está editando (MainActivity).
+public class DeviceRegistry {
+
+    public interface StatusListener {
+        void onStatus(SequencerDevice device, String status);
+    }
+
+    // Lo que usa de la conexión. Lo implementa MqttHandler; aparte para
+    // poder probar el registro sin broker.
+    public interface Connection {
+        void subscribe(String topic);
+
+        void unsubscribe(String topic);
+
+        void publish(String topic, String message);
+    }
+
+    private static final class StatusTarget {
+        final Executor executor;
+        final StatusListener listener;
+
+        StatusTarget(Executor executor, StatusListener listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
+    private final MessageDispatcher dispatcher;
+    private final Connection connection;
+
+    private final Map<String, SequencerDevice> devices = new LinkedHashMap<>();
+    private final Map<String, MessageDispatcher.Subscription> statusSubs = new LinkedHashMap<>();
+    private final Map<String, String> lastStatus = new ConcurrentHashMap<>();
+
+    // Listener y executor juntos, como en MqttHandler
+    private volatile StatusTarget statusTarget;
+
+    public DeviceRegistry(MqttHandler mqttHandler) {
+        this(mqttHandler.getDispatcher(), mqttHandler);
+    }
+
+    DeviceRegistry(MessageDispatcher dispatcher, Connection connection) {
+        this.dispatcher = dispatcher;
+        this.connection = connection;
+    }
+
+    // null para sacarlo
+    public void setStatusListener(Executor executor, StatusListener listener) {
+        statusTarget = listener != null ? new StatusTarget(executor, listener) : null;
+    }
+
+    // Devuelve false si ya estaba
+    public synchronized boolean add(SequencerDevice device) {
+        if (devices.containsKey(device.getId())) {
+            return false;
+        }
+        devices.put(device.getId(), device);
+        statusSubs.put(device.getId(), dispatcher.subscribe(
+                device.topicStatus, EspStatus.TEXT, MessageDispatcher.DIRECT,
+                (topic, status) -> onStatus(device.getId(), status)));
+        connection.subscribe(device.topicStatus);
+        return true;
+    }
+
+    // Cambia los datos de un equipo ya registrado (ej: el formato de la
+    // matriz). Los topics son los mismos, así que la suscripción no se toca.
+    public synchronized boolean update(SequencerDevice device) {
+        if (!devices.containsKey(device.getId())) {
+            return false;
+        }
+        devices.put(device.getId(), device);
+        return true;
+    }
+
+    public synchronized boolean remove(String id) {
+        SequencerDevice device = devices.remove(id);
+        if (device == null) {
+            return false;
+        }
+        statusSubs.remove(id).cancel();
+        lastStatus.remove(id);
+        // El principal sigue suscripto por MainActivity
+        if (!device.isMain()) {
+            connection.unsubscribe(device.topicStatus);
+        }
+        return true;
+    }
+
+    public synchronized SequencerDevice get(String id) {
+        return devices.get(id);
+    }
+
+    public synchronized List<SequencerDevice> devices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    // Último estado reportado, o null si todavía no habló
+    public String statusOf(SequencerDevice device) {
+        return lastStatus.get(device.getId());
+    }
+
+    private void onStatus(String id, String status) {
+        lastStatus.put(id, status.trim());
+        StatusTarget target = statusTarget;
+        SequencerDevice device = get(id);
+        if (target != null && device != null) {
+            target.executor.execute(() -> target.listener.onStatus(device, status.trim()));
+        }
+    }
+
+    // ============================
+    //   COMANDOS A TODOS
+    // ============================
+
+    // "PLAY_ALL", "IDLE", ... a todos los equipos con un solo mensaje
+    public void broadcastState(String state) {
+        connection.publish(SequencerDevice.ALL.topicState, state);
+    }
+}
@@ -0,0 +1,96 @@
+package com.ashencostha.mqtt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+
+// Cola de ediciones hacia /simulator/edit (o el "edit" del equipo que se
+// esté editando, ver setTopic()).
+// Junta las ediciones que llegan en una ventana corta (giroscopio, teclado)
+// y las manda en un solo mensaje "r c v;r c v;...". Si la misma celda se
+// edita varias veces dentro de la ventana, sólo viaja el último valor.
+// Se usa siempre desde el hilo principal.
+public class EditQueue {
+
+    public interface Sender {
+        void send(String topic, String message);
+    }
+
+    private static final long FLUSH_WINDOW_MS = 150;
+    private static final int  NO_VALUE = -1;
+
+    private final int cols;
+    private final Sender sender;
+    private String topic = ConfigMQTT.topicEdit;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Último valor pendiente por celda (NO_VALUE = sin cambios)
+    private final int[] pendingValues;
+    // Orden en que se tocaron las celdas, para mandarlas en ese orden
+    private final int[] pendingOrder;
+    private int pendingCount = 0;
+
+    private final Runnable flushTask = this::flush;
+
+    public EditQueue(int rows, int cols, Sender sender) {
+        this.cols = cols;
+        this.sender = sender;
+        this.pendingValues = new int[rows * cols];
+        this.pendingOrder = new int[rows * cols];
+        Arrays.fill(pendingValues, NO_VALUE);
+    }
+
+    // Lo pendiente sale antes al topic anterior
+    public void setTopic(String topic) {
+        flush();
+        this.topic = topic;
+    }
+
+    public void enqueue(int row, int col, int value) {
+        int cell = row * cols + col;
+        if (pendingValues[cell] == NO_VALUE) {
+            pendingOrder[pendingCount++] = cell;
+            if (pendingCount == 1) {
+                handler.postDelayed(flushTask, FLUSH_WINDOW_MS);
+            }
+        }
+        pendingValues[cell] = value; // gana el último
+    }
+
+    public boolean hasPending() {
+        return pendingCount > 0;
+    }
+
+    // Manda ya lo que haya pendiente (ej: botón GUARDAR o salir de edición)
+    public void flush() {
+        handler.removeCallbacks(flushTask);
+        if (pendingCount == 0) {
+            return;
+        }
+
+        StringBuilder msg = new StringBuilder(pendingCount * 9);
+        for (int i = 0; i < pendingCount; i++) {
+            int cell = pendingOrder[i];
+            if (i > 0) {
+                msg.append(';');
+            }
+            msg.append(cell / cols).append(' ')
+               .append(cell % cols).append(' ')
+               .append(pendingValues[cell]);
+            pendingValues[cell] = NO_VALUE;
+        }
+        pendingCount = 0;
+
+        sender.send(topic, msg.toString());
+    }
+
+    // Descarta lo pendiente sin mandarlo
+    public void clear() {
+        handler.removeCallbacks(flushTask);
+        for (int i = 0; i < pendingCount; i++) {
+            pendingValues[pendingOrder[i]] = NO_VALUE;
+        }
+        pendingCount = 0;
+    }
+}
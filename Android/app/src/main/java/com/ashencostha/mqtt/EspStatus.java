@@ -0,0 +1,56 @@
+package com.ashencostha.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+// Estados que reporta el ESP32 en /simulator/status.
+// parse() compara los bytes del payload contra cada estado, sin armar un
+// String por mensaje: un stream de estados no genera basura.
+public enum EspStatus {
+    IDLE, EDIT, PLAY_ALL, PLAY_LINE;
+
+    private static final EspStatus[] VALUES = values();
+
+    private final byte[] ascii = name().getBytes(StandardCharsets.US_ASCII);
+
+    public byte[] ascii() {
+        return ascii;
+    }
+
+    // null si no es un estado conocido
+    public static EspStatus parse(byte[] payload) {
+        int start = 0;
+        int end = payload.length;
+        while (start < end && payload[start] <= ' ') {
+            start++;
+        }
+        while (end > start && payload[end - 1] <= ' ') {
+            end--;
+        }
+        for (EspStatus status : VALUES) {
+            if (status.matches(payload, start, end - start)) {
+                return status;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] payload, int offset, int length) {
+        if (length != ascii.length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (payload[offset + k] != ascii[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Para listeners que quieren texto: los estados conocidos devuelven
+    // siempre el mismo String (name()), sólo lo desconocido aloca.
+    public static final MessageDispatcher.Decoder<String> TEXT = payload -> {
+        EspStatus status = parse(payload);
+        return (status != null) ? status.name()
+                                : new String(payload, StandardCharsets.US_ASCII).trim();
+    };
+}
@@ -0,0 +1,129 @@
+package com.ashencostha.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Último payload conocido de cada topic, guardado en un archivo.
+// Al abrir la app se muestra lo último que se supo del ESP (estado, matriz)
+// sin esperar a la red; cuando llega el dato vivo (el broker lo manda apenas
+// nos suscribimos porque el ESP publica con retained) se pisa y se vuelve a
+// guardar. Las escrituras a disco van en el Executor que se pase, y varias
+// seguidas se juntan en una sola.
+public class LastValueCache {
+
+    private static final int FILE_MAGIC = 0x4C564301;   // "LVC" + versión 1
+    private static final int MAX_PAYLOAD = 64 * 1024;
+
+    private final File file;
+    private final Executor ioExecutor;
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    public LastValueCache(File file, Executor ioExecutor) {
+        this.file = file;
+        this.ioExecutor = ioExecutor;
+    }
+
+    public byte[] get(String topic) {
+        return values.get(topic);
+    }
+
+    // Devuelve true si el valor cambió (y se va a guardar)
+    public boolean put(String topic, byte[] payload) {
+        byte[] previous = values.put(topic, payload);
+        if (Arrays.equals(previous, payload)) {
+            return false;
+        }
+        scheduleSave();
+        return true;
+    }
+
+    public void remove(String topic) {
+        if (values.remove(topic) != null) {
+            scheduleSave();
+        }
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ioExecutor.execute(() -> {
+                saveScheduled.set(false);
+                try {
+                    save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Executor ya cerrado (la pantalla se está destruyendo)
+            saveScheduled.set(false);
+        }
+    }
+
+    // ============================
+    //   ARCHIVO
+    // ============================
+    // int magic, int cantidad, y por cada entrada: UTF topic, int largo, bytes
+
+    public void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String topic = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    throw new IOException("Entrada inválida: " + topic);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                // Lo que llegó en vivo mientras cargábamos tiene prioridad
+                values.putIfAbsent(topic, payload);
+            }
+        } catch (IOException e) {
+            // Archivo roto o a medio escribir: se arranca sin cache
+            e.printStackTrace();
+        }
+    }
+
+    // Escribe a un temporal y lo renombra, para no dejar el archivo a medias
+    public synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            Map<String, byte[]> snapshot = new HashMap<>(values);
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("No se pudo reemplazar " + file);
+        }
+    }
+}
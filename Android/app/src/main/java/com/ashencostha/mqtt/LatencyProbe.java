@@ -0,0 +1,175 @@
+package com.ashencostha.mqtt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+// Mide cuánto tarda un comando del celu en llegar al ESP32 y volver.
+//
+//   PING : "P <nanoTime>" por /simulator/ping, el ESP lo devuelve tal cual
+//          por /simulator/pong. No hace falta guardar nada: el tiempo viaja
+//          en el mensaje.
+//   STATE: PLAY_ALL / IDLE por /simulator/state hasta que /simulator/status
+//          reporta ese mismo estado.
+//   SYNC : una sync (delta por /simulator/edit o foto por getcell) hasta el
+//          "@v" con esa versión en /simulator/cellval.
+public class LatencyProbe {
+
+    public enum Kind { PING, STATE, SYNC }
+
+    // Comandos sin eco después de este tiempo se descartan
+    static final long PENDING_TIMEOUT_NS = 10_000_000_000L;
+    static final int  MAX_PENDING        = 32;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Kind.values().length];
+
+    // Comandos esperando eco, por tipo: slots fijos con el eco en bytes, así
+    // echoReceived() compara contra el payload crudo sin alocar nada.
+    private final byte[][][] pendingEcho = new byte[Kind.values().length][MAX_PENDING][];
+    private final long[][] pendingSent = new long[Kind.values().length][MAX_PENDING];
+
+    // En nanosegundos; los tests pasan uno propio para no esperar el timeout
+    private final LongSupplier clock;
+
+    public LatencyProbe() {
+        this(System::nanoTime);
+    }
+
+    LatencyProbe(LongSupplier clock) {
+        this.clock = clock;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram histogram(Kind kind) {
+        return histograms[kind.ordinal()];
+    }
+
+    // ============================
+    //   PING / PONG
+    // ============================
+
+    public byte[] newPing() {
+        return ("P " + clock.getAsLong()).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Devuelve false si el pong no es nuestro
+    public boolean onPong(byte[] payload) {
+        if (payload.length < 3 || payload[0] != 'P' || payload[1] != ' ') {
+            return false;
+        }
+        long sent = 0;
+        for (int k = 2; k < payload.length; k++) {
+            int c = payload[k];
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            sent = sent * 10 + (c - '0');
+        }
+        record(Kind.PING, clock.getAsLong() - sent);
+        return true;
+    }
+
+    // ============================
+    //   COMANDO -> ECO
+    // ============================
+
+    public void commandSent(Kind kind, String echo) {
+        byte[] bytes = echo.getBytes(StandardCharsets.US_ASCII);
+        byte[][] echoes = pendingEcho[kind.ordinal()];
+        long[] sent = pendingSent[kind.ordinal()];
+        long now = clock.getAsLong();
+
+        synchronized (echoes) {
+            int free = -1;
+            int oldest = 0;
+            for (int i = 0; i < MAX_PENDING; i++) {
+                if (echoes[i] == null || now - sent[i] > PENDING_TIMEOUT_NS) {
+                    echoes[i] = null;
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if (Arrays.equals(echoes[i], bytes)) {
+                    // Si ya había uno igual esperando, medimos desde el primero
+                    return;
+                } else if (sent[i] < sent[oldest]) {
+                    oldest = i;
+                }
+            }
+            int slot = (free >= 0) ? free : oldest;
+            echoes[slot] = bytes;
+            sent[slot] = now;
+        }
+    }
+
+    public boolean echoReceived(Kind kind, String echo) {
+        byte[] bytes = echo.getBytes(StandardCharsets.US_ASCII);
+        return echoReceived(kind, bytes, 0, bytes.length);
+    }
+
+    // El eco tal como llegó en el payload (ej: "@12" en cellval)
+    public boolean echoReceived(Kind kind, byte[] payload, int offset, int length) {
+        long now = clock.getAsLong();
+        byte[][] echoes = pendingEcho[kind.ordinal()];
+        long[] sent = pendingSent[kind.ordinal()];
+
+        synchronized (echoes) {
+            for (int i = 0; i < MAX_PENDING; i++) {
+                byte[] echo = echoes[i];
+                if (echo != null && echo.length == length && regionEquals(echo, payload, offset)) {
+                    echoes[i] = null;
+                    record(kind, now - sent[i]);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(byte[] echo, byte[] payload, int offset) {
+        for (int k = 0; k < echo.length; k++) {
+            if (echo[k] != payload[offset + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void record(Kind kind, long elapsedNs) {
+        histograms[kind.ordinal()].record(elapsedNs / 1000);
+    }
+
+    // ============================
+    //   REPORTE
+    // ============================
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Kind kind : Kind.values()) {
+            sb.append(kind.name()).append(": ").append(histogram(kind).summary()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void dump(Writer out) throws IOException {
+        out.write(report());
+        for (Kind kind : Kind.values()) {
+            out.write("\n# " + kind.name() + "\n");
+            histogram(kind).dump(out);
+        }
+    }
+
+    public void reset() {
+        for (byte[][] echoes : pendingEcho) {
+            synchronized (echoes) {
+                Arrays.fill(echoes, null);
+            }
+        }
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package com.ashencostha.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Broker MQTT 3.1.1 mínimo que corre dentro de la app, para usar en la red
+// local: el ESP32 se conecta al celu en vez de ir a broker.emqx.io y volver.
+// También sirve para tests (puerto 0 = cualquiera libre).
+//
+// Alcance (lo que usan Paho y PubSubClient):
+//   - CONNECT / CONNACK, PINGREQ, DISCONNECT, will
+//   - PUBLISH QoS 0/1/2 entrante, retained
+//   - SUBSCRIBE / UNSUBSCRIBE con comodines + y #
+//   - Salida con QoS hasta 1, sin reintentos: sesión limpia siempre
+// Un hilo por cliente; con un par de equipos en la LAN alcanza.
+public class LocalBroker {
+
+    public static final int DEFAULT_PORT = 1883;
+
+    private static final int MAX_PACKET  = 256 * 1024;
+    private static final int MAX_OUT_QOS = 1;
+
+    // Tipos de paquete (nibble alto del primer byte)
+    private static final int CONNECT     = 1;
+    private static final int PUBLISH     = 3;
+    private static final int PUBACK      = 4;
+    private static final int PUBREL      = 6;
+    private static final int SUBSCRIBE   = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ     = 12;
+    private static final int DISCONNECT  = 14;
+
+    private final int requestedPort;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+    private final AtomicInteger anonymousIds = new AtomicInteger();
+
+    private volatile ServerSocket server;
+
+    public LocalBroker(int port) {
+        this.requestedPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(requestedPort));
+        server = socket;
+
+        Thread acceptThread = new Thread(() -> acceptLoop(socket), "LocalBroker-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void stop() {
+        ServerSocket socket = server;
+        server = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Session session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+        retained.clear();
+    }
+
+    public boolean isRunning() {
+        return server != null;
+    }
+
+    // Puerto real (útil cuando se pidió el 0)
+    public int getPort() {
+        ServerSocket socket = server;
+        return (socket != null) ? socket.getLocalPort() : requestedPort;
+    }
+
+    public int clientCount() {
+        return sessions.size();
+    }
+
+    private void acceptLoop(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                client.setTcpNoDelay(true);
+                Thread t = new Thread(new Session(client), "LocalBroker-client");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // close() desde stop() termina acá
+            }
+        }
+    }
+
+    // ============================
+    //   RUTEO
+    // ============================
+
+    private void route(String topic, byte[] payload, int qos) {
+        for (Session session : sessions.values()) {
+            int granted = session.grantedQos(topic);
+            if (granted >= 0) {
+                session.sendPublish(topic, payload, Math.min(qos, granted), false);
+            }
+        }
+    }
+
+    private void retain(String topic, byte[] payload) {
+        if (payload.length == 0) {
+            retained.remove(topic);
+        } else {
+            retained.put(topic, payload);
+        }
+    }
+
+    // ¿El topic entra en el filtro? '+' es un nivel, '#' el resto (incluido el padre)
+    static boolean matches(String filter, String topic) {
+        int f = 0;
+        int t = 0;
+        int fl = filter.length();
+        int tl = topic.length();
+
+        while (f < fl) {
+            char c = filter.charAt(f);
+            if (c == '#') {
+                return true;
+            }
+            if (c == '+') {
+                while (t < tl && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+                continue;
+            }
+            if (t >= tl) {
+                // "a/#" también vale para "a"
+                return f + 2 == fl && c == '/' && filter.charAt(f + 1) == '#';
+            }
+            if (topic.charAt(t) != c) {
+                return false;
+            }
+            f++;
+            t++;
+        }
+        return t == tl;
+    }
+
+    static boolean isValidFilter(String filter) {
+        if (filter.isEmpty()) {
+            return false;
+        }
+        int n = filter.length();
+        for (int k = 0; k < n; k++) {
+            char c = filter.charAt(k);
+            if (c == '+' || c == '#') {
+                boolean levelStart = (k == 0) || filter.charAt(k - 1) == '/';
+                boolean levelEnd = (k == n - 1) || filter.charAt(k + 1) == '/';
+                if (!levelStart || !levelEnd || (c == '#' && k != n - 1)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidTopic(String topic) {
+        return !topic.isEmpty() && topic.indexOf('+') < 0 && topic.indexOf('#') < 0;
+    }
+
+    // IPv4 de la LAN de este equipo, para configurar el ESP32
+    public static List<String> localAddresses() {
+        List<String> out = new ArrayList<>();
+        try {
+            for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!nif.isUp() || nif.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress addr : Collections.list(nif.getInetAddresses())) {
+                    if (addr instanceof Inet4Address && addr.isSiteLocalAddress()) {
+                        out.add(addr.getHostAddress());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        return out;
+    }
+
+    // ============================
+    //   SESIÓN DE UN CLIENTE
+    // ============================
+
+    private final class Session implements Runnable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        // filtro -> QoS otorgado
+        private final Map<String, Integer> subscriptions = new ConcurrentHashMap<>();
+        // QoS 2 entrantes recibidos y todavía sin PUBREL
+        private final Set<Integer> awaitingRelease = new HashSet<>();
+
+        private String clientId;
+        private String willTopic;
+        private byte[] willPayload;
+        private int willQos;
+        private boolean willRetain;
+
+        private int nextPacketId = 1;
+        private volatile boolean closed;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            boolean clean = false;
+            try {
+                if (!handleConnect()) {
+                    return;
+                }
+                while (!closed) {
+                    int header = in.read();
+                    if (header < 0) {
+                        break;
+                    }
+                    ByteBuffer body = ByteBuffer.wrap(readBody(in));
+                    int type = header >>> 4;
+                    if (type == DISCONNECT) {
+                        clean = true;
+                        break;
+                    }
+                    handle(type, header & 0x0F, body);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Cliente caído o paquete inválido: se corta la conexión
+            } finally {
+                if (clientId != null) {
+                    sessions.remove(clientId, this);
+                }
+                if (!clean && willTopic != null && !closed) {
+                    publishWill();
+                }
+                close();
+            }
+        }
+
+        private boolean handleConnect() throws IOException {
+            int header = in.read();
+            if (header < 0 || (header >>> 4) != CONNECT) {
+                return false;
+            }
+            ByteBuffer body = ByteBuffer.wrap(readBody(in));
+            readString(body);                      // "MQTT" o "MQIsdp"
+            int level = body.get() & 0xFF;
+            int flags = body.get() & 0xFF;
+            int keepAlive = body.getShort() & 0xFFFF;
+
+            if (level != 3 && level != 4) {
+                writePacket(0x20, new byte[] { 0, 1 });   // versión no soportada
+                return false;
+            }
+
+            String id = readString(body);
+            if (id.isEmpty()) {
+                id = "local-" + anonymousIds.incrementAndGet();
+            }
+            if ((flags & 0x04) != 0) {
+                willTopic = readString(body);
+                willPayload = readBytes(body);
+                willQos = Math.min((flags >>> 3) & 0x03, 2);
+                willRetain = (flags & 0x20) != 0;
+            }
+            // Usuario y clave se aceptan sin validar (red local)
+
+            if (keepAlive > 0) {
+                socket.setSoTimeout(keepAlive * 1500);
+            }
+
+            clientId = id;
+            Session previous = sessions.put(id, this);
+            if (previous != null) {
+                // Mismo clientId reconectando: se descarta la conexión vieja
+                previous.close();
+            }
+            writePacket(0x20, new byte[] { 0, 0 });
+            return true;
+        }
+
+        private void handle(int type, int flags, ByteBuffer body) throws IOException {
+            switch (type) {
+                case PUBLISH:
+                    handlePublish(flags, body);
+                    break;
+                case PUBREL: {
+                    int packetId = body.getShort() & 0xFFFF;
+                    synchronized (awaitingRelease) {
+                        awaitingRelease.remove(packetId);
+                    }
+                    writePacket(0x70, packetId(packetId));   // PUBCOMP
+                    break;
+                }
+                case SUBSCRIBE:
+                    handleSubscribe(body);
+                    break;
+                case UNSUBSCRIBE: {
+                    int packetId = body.getShort() & 0xFFFF;
+                    while (body.hasRemaining()) {
+                        subscriptions.remove(readString(body));
+                    }
+                    writePacket(0xB0, packetId(packetId));   // UNSUBACK
+                    break;
+                }
+                case PINGREQ:
+                    writePacket(0xD0, new byte[0]);          // PINGRESP
+                    break;
+                case PUBACK:
+                    // Salida QoS 1 sin reintentos: no hay nada que liberar
+                    break;
+                default:
+                    throw new IOException("Paquete no soportado: " + type);
+            }
+        }
+
+        private void handlePublish(int flags, ByteBuffer body) throws IOException {
+            int qos = (flags >>> 1) & 0x03;
+            boolean retainFlag = (flags & 0x01) != 0;
+            String topic = readString(body);
+            if (!isValidTopic(topic) || qos > 2) {
+                throw new IOException("PUBLISH inválido");
+            }
+            int packetId = (qos > 0) ? (body.getShort() & 0xFFFF) : 0;
+            byte[] payload = new byte[body.remaining()];
+            body.get(payload);
+
+            if (qos == 2) {
+                boolean duplicate;
+                synchronized (awaitingRelease) {
+                    duplicate = !awaitingRelease.add(packetId);
+                }
+                writePacket(0x50, packetId(packetId));       // PUBREC
+                if (duplicate) {
+                    return;
+                }
+            } else if (qos == 1) {
+                writePacket(0x40, packetId(packetId));       // PUBACK
+            }
+
+            if (retainFlag) {
+                retain(topic, payload);
+            }
+            route(topic, payload, qos);
+        }
+
+        private void handleSubscribe(ByteBuffer body) throws IOException {
+            int packetId = body.getShort() & 0xFFFF;
+            List<String> added = new ArrayList<>();
+            ByteBuffer ack = ByteBuffer.allocate(2 + body.remaining());
+            ack.putShort((short) packetId);
+
+            while (body.hasRemaining()) {
+                String filter = readString(body);
+                int requested = body.get() & 0x03;
+                if (!isValidFilter(filter)) {
+                    ack.put((byte) 0x80);
+                    continue;
+                }
+                int granted = Math.min(requested, MAX_OUT_QOS);
+                subscriptions.put(filter, granted);
+                added.add(filter);
+                ack.put((byte) granted);
+            }
+            writePacket(0x90, Arrays.copyOf(ack.array(), ack.position()));
+
+            // Los retained van después del SUBACK, como pide la spec
+            for (Map.Entry<String, byte[]> entry : retained.entrySet()) {
+                for (String filter : added) {
+                    if (matches(filter, entry.getKey())) {
+                        sendPublish(entry.getKey(), entry.getValue(), subscriptions.get(filter), true);
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Mayor QoS otorgado entre los filtros que matchean, -1 si ninguno
+        int grantedQos(String topic) {
+            int best = -1;
+            for (Map.Entry<String, Integer> sub : subscriptions.entrySet()) {
+                if (sub.getValue() > best && matches(sub.getKey(), topic)) {
+                    best = sub.getValue();
+                }
+            }
+            return best;
+        }
+
+        void sendPublish(String topic, byte[] payload, int qos, boolean retainFlag) {
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            int length = 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length;
+            int header = (PUBLISH << 4) | (qos << 1) | (retainFlag ? 1 : 0);
+            try {
+                synchronized (out) {
+                    out.write(header);
+                    writeRemainingLength(out, length);
+                    out.write(topicBytes.length >>> 8);
+                    out.write(topicBytes.length & 0xFF);
+                    out.write(topicBytes);
+                    if (qos > 0) {
+                        int id = nextPacketId;
+                        nextPacketId = (id == 0xFFFF) ? 1 : id + 1;
+                        out.write(id >>> 8);
+                        out.write(id & 0xFF);
+                    }
+                    out.write(payload);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void publishWill() {
+            if (willRetain) {
+                retain(willTopic, willPayload);
+            }
+            route(willTopic, willPayload, willQos);
+        }
+
+        private void writePacket(int header, byte[] body) throws IOException {
+            synchronized (out) {
+                out.write(header);
+                writeRemainingLength(out, body.length);
+                out.write(body);
+                out.flush();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ============================
+    //   CODIFICACIÓN MQTT
+    // ============================
+
+    private static byte[] readBody(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 28);
+
+        if (length > MAX_PACKET) {
+            throw new IOException("Paquete demasiado grande: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    private static void writeRemainingLength(OutputStream out, int length) throws IOException {
+        do {
+            int digit = length & 0x7F;
+            length >>>= 7;
+            out.write((length > 0) ? (digit | 0x80) : digit);
+        } while (length > 0);
+    }
+
+    private static String readString(ByteBuffer body) {
+        return new String(readBytes(body), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer body) {
+        int length = body.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] packetId(int id) {
+        return new byte[] { (byte) (id >>> 8), (byte) id };
+    }
+}
@@ -1,16 +1,15 @@
 package com.ashencostha.mqtt;
 
-import android.annotation.SuppressLint;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -20,15 +19,29 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import android.text.InputType;
+import android.text.TextUtils;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.google.gson.Gson;
-
-import java.lang.reflect.Type;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity
         implements MatrixAdapter.OnCellEditListener, SensorEventListener {
@@ -36,11 +49,22 @@ public class MainActivity extends AppCompatActivity
     // --- Matriz y sus dimensiones ---
     private static final int ROWS = 16;
     private static final int COLS = 4;
-    private int[][] matrixVals = new int[ROWS][COLS];
+    private final SequencerMatrix matrix = new SequencerMatrix();
     // ---------------------------------
 
     private static final int LOAD_SONG_REQUEST_CODE = 1;
 
+    // --- Preferencias de conexión ---
+    private static final String MQTT_PREFS_KEY   = "MqttPrefs";
+    private static final String LOCAL_BROKER_KEY = "LocalBroker";
+    private static final String LAST_VALUES_FILE = "last_values.bin";
+    private static final String DEVICES_KEY      = "Devices";
+    // Ids de los equipos que usan la matriz binaria (el principal es "")
+    private static final String BINARY_DEVICES_KEY = "BinaryDevices";
+    private static final String ACTIVE_DEVICE_KEY  = "ActiveDevice";
+    // Sufijo del clientId de esta instalación
+    private static final String CLIENT_ID_KEY      = "ClientId";
+
     // --- Componentes de la UI ---
     private GridView matrixGridView;
     private MatrixAdapter matrixAdapter;
@@ -79,12 +103,27 @@ public class MainActivity extends AppCompatActivity
     private int selectedCol = -1;
     // ------------------------------------
 
-    // --- MQTT y BroadcastReceiver ---
+    // --- MQTT y listeners ---
     private MqttHandler mqttHandler;
-    public IntentFilter filterReceive;
-    public IntentFilter filterConnectionLost;
-    private final ReceptorOperacion receiver = new ReceptorOperacion();
-    private final ConnectionLost connectionLost = new ConnectionLost();
+    private EditQueue editQueue;
+    private MatrixSync matrixSync;
+    private final LatencyProbe latencyProbe = new LatencyProbe();
+    // Del proceso, no de la Activity: al rotar la pantalla la instancia nueva
+    // sigue usando el mismo broker y los ESP32 no pierden la conexión
+    private static LocalBroker localBroker;
+    private LastValueCache lastValues;
+    private DeviceRegistry deviceRegistry;
+    // Lo que llega del equipo que se está editando (cambian con el equipo)
+    private final List<MessageDispatcher.Subscription> deviceSubs = new ArrayList<>();
+
+    // Estado del ESP: lo escribe el hilo de Paho, lo muestra el principal
+    private volatile EspStatus latestEspStatus;
+    private EspStatus shownEspStatus;
+    private final AtomicBoolean statusUpdatePosted = new AtomicBoolean();
+    private final Runnable statusUpdater = this::showLatestEspStatus;
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mainExecutor = mainHandler::post;
     // --------------------------------
 
     // --- Sensor (Giroscopio + Acelerómetro) ---
@@ -154,6 +193,17 @@ public class MainActivity extends AppCompatActivity
         cmdSyncBack.setOnClickListener(botonesListeners);
         cmdSendMatrix.setOnClickListener(botonesListeners);
         cmdReceiveMatrix.setOnClickListener(botonesListeners);
+
+        // Mantener apretado el estado del ESP muestra las latencias medidas
+        txtEspStatus.setOnLongClickListener(v -> {
+            showLatencyDialog();
+            return true;
+        });
+        // Mantener apretado el estado de la app permite elegir el broker
+        txtPhoneState.setOnLongClickListener(v -> {
+            showBrokerDialog();
+            return true;
+        });
         // ----------------------------------
 
         // --- Inicialización del Sensor Manager ---
@@ -169,8 +219,7 @@ public class MainActivity extends AppCompatActivity
         }
 
         // --- Lógica de la Matriz ---
-        initializeMatrix();
-        matrixAdapter = new MatrixAdapter(this, matrixVals, this);
+        matrixAdapter = new MatrixAdapter(this, matrix, this);
         matrixGridView.setAdapter(matrixAdapter);
         // ---------------------------
 
@@ -179,9 +228,25 @@ public class MainActivity extends AppCompatActivity
         setPhoneState(AppState.IDLE);
         // ---------------------------
 
-        // --- Conexión MQTT y Configuración de Receivers ---
-        mqttHandler = new MqttHandler(getApplicationContext());
-        configurarBroadcastReceiver();
+        // --- Último estado conocido del ESP (antes de que conecte) ---
+        // Se lee en ioExecutor y se pinta cuando llega; lo que entre en vivo
+        // mientras tanto tiene prioridad
+        lastValues = new LastValueCache(new File(getFilesDir(), LAST_VALUES_FILE), ioExecutor);
+        ioExecutor.execute(() -> {
+            lastValues.load();
+            mainHandler.post(this::restoreLastKnownState);
+        });
+        // --------------------------------------------------------------
+
+        // --- Conexión MQTT y Configuración de Listeners ---
+        mqttHandler = new MqttHandler(getApplicationContext(), new MessageDispatcher());
+        editQueue   = new EditQueue(ROWS, COLS, this::publishMessage);
+        matrixSync  = new MatrixSync(this::publishPayload);
+        matrixSync.bind(matrix);
+        deviceRegistry = new DeviceRegistry(mqttHandler);
+        SequencerDevice active = loadDevices();
+        registerMessageListeners();
+        selectDevice(active);
         connect();
         // -------------------------------------------------
     }
@@ -228,14 +293,10 @@ public class MainActivity extends AppCompatActivity
             selectedCol = col;
             matrixAdapter.setSelection(row, col);
             txtJson.setText("Celda (" + row + ", " + col + ") seleccionada. Presiona EDITAR.");
-        }
-    }
-
-    private void initializeMatrix() {
-        for (int i = 0; i < ROWS; i++) {
-            for (int j = 0; j < COLS; j++) {
-                matrixVals[i][j] = 0;
-            }
+        } else if (currentState == AppState.EDITING) {
+            // Valor tipeado en la grilla (ya está en la matriz, y la sync lo
+            // toma de ahí): va a la cola de ediciones
+            editQueue.enqueue(row, col, value);
         }
     }
 
@@ -244,54 +305,99 @@ public class MainActivity extends AppCompatActivity
     // ============================
     private void connect() {
         ConfigMQTT.useServerSequencer();
+        if (isLocalBrokerEnabled() && startLocalBroker()) {
+            ConfigMQTT.useLocalBroker(localBroker.getPort());
+        }
+
+        // Las suscripciones quedan registradas en el handler y se emiten
+        // apenas completa el connect (sin bloquear el hilo de UI).
+        // Estado del ESP
+        subscribeToTopic(ConfigMQTT.topicStatus);
+        // Eco de los pings de latencia
+        subscribeToTopic(ConfigMQTT.topicPong);
+        // La matriz del equipo que se edita ya quedó anotada en selectDevice()
 
+        mqttHandler.setDurableSession(ConfigMQTT.durableSession);
         mqttHandler.connect(
                 ConfigMQTT.mqttServer,
-                ConfigMQTT.CLIENT_ID,
+                clientId(),
                 ConfigMQTT.userName,
                 ConfigMQTT.userPass
         );
-
-        try {
-            Thread.sleep(1000);
-            // Estado del ESP
-            subscribeToTopic(ConfigMQTT.topicStatus);
-            // Matriz que manda el ESP32 (/simulator/cellval)
-            subscribeToTopic(ConfigMQTT.topicReceiveMatrix);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
     }
 
-    @SuppressLint("UnspecifiedRegisterReceiverFlag")
-    private void configurarBroadcastReceiver() {
-        filterReceive        = new IntentFilter(MqttHandler.ACTION_DATA_RECEIVE);
-        filterConnectionLost = new IntentFilter(MqttHandler.ACTION_CONNECTION_LOST);
-
-        filterReceive.addCategory(Intent.CATEGORY_DEFAULT);
-        filterConnectionLost.addCategory(Intent.CATEGORY_DEFAULT);
-
-        registerReceiver(receiver,        filterReceive);
-        registerReceiver(connectionLost,  filterConnectionLost);
+    // CLIENT_ID + un sufijo al azar que se genera la primera vez y queda
+    // guardado: la sesión persistente en el broker es de esta instalación
+    private String clientId() {
+        SharedPreferences prefs = getSharedPreferences(MQTT_PREFS_KEY, MODE_PRIVATE);
+        String suffix = prefs.getString(CLIENT_ID_KEY, null);
+        if (suffix == null) {
+            suffix = UUID.randomUUID().toString().substring(0, 8);
+            prefs.edit().putString(CLIENT_ID_KEY, suffix).apply();
+        }
+        return ConfigMQTT.CLIENT_ID + "_" + suffix;
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (editQueue != null) {
+            editQueue.flush();
+        }
         if (mqttHandler != null) {
+            mqttHandler.getDispatcher().clear();
+            mqttHandler.setConnectionListener(null, null);
             mqttHandler.disconnect();
         }
-        unregisterReceiver(receiver);
-        unregisterReceiver(connectionLost);
+        // Se recrea (ej: rotación): el broker queda para la instancia nueva
+        if (isFinishing()) {
+            stopLocalBroker();
+        }
+        ioExecutor.shutdown();
+        mainHandler.removeCallbacksAndMessages(null);
     }
 
     private void publishMessage(String topic, String message) {
         txtJson.setText("Publicando: " + message + " en " + topic);
+        if (topic.equals(ConfigMQTT.topicState)) {
+            measureStateCommand(message);
+        }
         if (mqttHandler != null) {
             mqttHandler.publish(topic, message);
         }
     }
 
+    // El ESP confirma un cambio de estado publicando el nuevo en topicStatus.
+    // Sólo se mide si cambia de verdad: si ya estaba en ese estado puede no
+    // republicarlo, y el pendiente se aparearía con cualquier status igual
+    // que llegue después.
+    private void measureStateCommand(String state) {
+        EspStatus current = latestEspStatus;
+        if (current != null && !current.name().equals(state)) {
+            latencyProbe.commandSent(LatencyProbe.Kind.STATE, state);
+        }
+    }
+
+    // Con más de un equipo registrado, PLAY_ALL / IDLE van a todos a la vez.
+    // Eso no se mide: un solo eco no dice cuánto tardó cada equipo.
+    private void sendState(String state) {
+        if (deviceRegistry.size() > 1) {
+            txtJson.setText("Publicando: " + state + " en " + deviceRegistry.size() + " equipos");
+            deviceRegistry.broadcastState(state);
+        } else {
+            publishMessage(ConfigMQTT.topicState, state);
+        }
+    }
+
+    private void publishPayload(String topic, byte[] payload) {
+        txtJson.setText("Publicando " + payload.length + " bytes en " + topic);
+        // Sólo MatrixSync publica por acá: el ESP confirma con "@v"
+        latencyProbe.commandSent(LatencyProbe.Kind.SYNC, "@" + matrixSync.getLocalVersion());
+        if (mqttHandler != null) {
+            mqttHandler.publish(topic, payload);
+        }
+    }
+
     private void subscribeToTopic(String topic) {
         Toast.makeText(this, "Suscribiendo a " + topic, Toast.LENGTH_SHORT).show();
         if (mqttHandler != null) {
@@ -317,10 +423,10 @@ public class MainActivity extends AppCompatActivity
             }
 
         } else if (id == R.id.cmdReproducir) {
-            publishMessage(ConfigMQTT.topicState, "PLAY_ALL");
+            sendState("PLAY_ALL");
 
         } else if (id == R.id.cmdStop) {
-            publishMessage(ConfigMQTT.topicState, "IDLE");
+            sendState("IDLE");
 
         } else if (id == R.id.cmdSaveSong) {
             showSaveSongDialog();
@@ -336,15 +442,15 @@ public class MainActivity extends AppCompatActivity
         // --- Menú de edición ---
         else if (id == R.id.cmdPlayRow) {
             if (selectedRow != -1) {
-                publishMessage(ConfigMQTT.topicPlayRow, String.valueOf(selectedRow));
+                publishMessage(activeDevice().topicPlayRow, String.valueOf(selectedRow));
             }
 
         } else if (id == R.id.cmdSave) {
             if (selectedRow != -1 && selectedCol != -1) {
-                int valueToSave = matrixVals[selectedRow][selectedCol];
+                int valueToSave = matrix.get(selectedRow, selectedCol);
                 try {
-                    String msg = selectedRow + " " + selectedCol + " " + valueToSave;
-                    publishMessage(ConfigMQTT.topicEdit, msg);
+                    editQueue.enqueue(selectedRow, selectedCol, valueToSave);
+                    editQueue.flush();
                 } catch (Exception e) {
                     e.printStackTrace();
                     Toast.makeText(this,
@@ -354,11 +460,12 @@ public class MainActivity extends AppCompatActivity
             }
 
         } else if (id == R.id.cmdBackToMenu) {
+            editQueue.flush();
             currentState = AppState.IDLE;
             matrixAdapter.setEditing(false);
             updateUIVisibility();
             setPhoneState(AppState.IDLE);
-            publishMessage(ConfigMQTT.topicState, "IDLE");
+            publishMessage(activeDevice().topicState, "IDLE");
         }
 
         // --- Menú de Sincronización ---
@@ -367,72 +474,178 @@ public class MainActivity extends AppCompatActivity
 
         } else if (id == R.id.cmdSendMatrix) {
             // Celu → ESP32
-            sendMatrixAsString();
+            sendMatrix();
 
         } else if (id == R.id.cmdReceiveMatrix) {
-            // Ya estamos suscriptos a topicReceiveMatrix en connect()
+            // Ya estamos suscriptos a su topicReceiveMatrix en selectDevice()
+            // Mientras tanto mostramos la última conocida, si la hay
+            boolean cached = showCachedMatrix();
             // Pedimos la matriz actual al ESP32
-            publishMessage(ConfigMQTT.topicSendMatrix, "SEND_MATRIX");
+            publishMessage(activeDevice().topicSendMatrix,
+                    activeDevice().getMatrixFormat() == MatrixCodec.Format.BINARY
+                            ? "SEND_MATRIX BIN" : "SEND_MATRIX");
             Toast.makeText(this,
-                    "Esperando matriz del ESP...",
+                    cached ? "Mostrando la última matriz conocida, actualizando..."
+                           : "Esperando matriz del ESP...",
                     Toast.LENGTH_SHORT).show();
         }
     }
 
     // ============================
-    //   BROADCASTS MQTT
+    //   MENSAJES MQTT
     // ============================
 
-    public class ConnectionLost extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            Toast.makeText(getApplicationContext(),
-                    "Conexión Perdida. Reconectando...",
-                    Toast.LENGTH_SHORT).show();
-            connect();
+    // Se registran en el dispatcher: llegan ya decodificados y en el hilo
+    // principal, sin pasar por Intents.
+    private void registerMessageListeners() {
+        MessageDispatcher dispatcher = mqttHandler.getDispatcher();
+        // El estado se parsea en el hilo de Paho; a la UI va un único Runnable
+        dispatcher.subscribe(ConfigMQTT.topicStatus,
+                MessageDispatcher.DIRECT, this::onStatusPayload);
+        // Lo último de cada topic queda guardado para el próximo arranque
+        dispatcher.subscribe(ConfigMQTT.topicStatus,
+                MessageDispatcher.DIRECT, (topic, payload) -> lastValues.put(topic, payload));
+        // El pong se mide en el hilo de Paho, sin esperar al hilo principal
+        dispatcher.subscribe(ConfigMQTT.topicPong,
+                MessageDispatcher.DIRECT, (topic, payload) -> latencyProbe.onPong(payload));
+
+        // La reconexión la maneja MqttHandler (backoff + buffer); acá sólo avisamos
+        mqttHandler.setConnectionListener(mainExecutor, new MqttHandler.ConnectionListener() {
+            @Override
+            public void onConnectionLost(Throwable cause) {
+                Toast.makeText(getApplicationContext(),
+                        "Conexión Perdida. Reconectando...",
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onConnected(boolean reconnect) {
+                if (reconnect) {
+                    Toast.makeText(getApplicationContext(),
+                            "Reconectado",
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    // Estado del ESP (/simulator/status), en el hilo de Paho.
+    // Sin Strings por mensaje: se compara el payload contra los estados
+    // conocidos y la UI se refresca con un Runnable ya armado, a lo sumo
+    // uno pendiente a la vez aunque lleguen muchos estados seguidos.
+    private void onStatusPayload(String topic, byte[] payload) {
+        EspStatus status = EspStatus.parse(payload);
+        if (status == null) {
+            // Algo que no conocemos: se muestra tal cual
+            String text = new String(payload, StandardCharsets.US_ASCII).trim();
+            mainHandler.post(() -> {
+                shownEspStatus = null;
+                onStatusMessage(topic, text);
+            });
+            return;
+        }
+        byte[] echo = status.ascii();
+        latencyProbe.echoReceived(LatencyProbe.Kind.STATE, echo, 0, echo.length);
+
+        TraceBuffer.APP.record(TraceBuffer.ESP_STATUS, status.ordinal(), 0);
+        latestEspStatus = status;
+        if (statusUpdatePosted.compareAndSet(false, true)) {
+            mainHandler.post(statusUpdater);
         }
     }
 
-    public class ReceptorOperacion extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent != null && intent.getExtras() != null) {
-                String topic   = intent.getStringExtra("topic");
-                String message = intent.getStringExtra("msgJson");
+    private void showLatestEspStatus() {
+        statusUpdatePosted.set(false);
+        EspStatus status = latestEspStatus;
+        if (status == null || status == shownEspStatus) {
+            return;
+        }
+        shownEspStatus = status;
+        onStatusMessage(ConfigMQTT.topicStatus, status.name());
+    }
 
-                if (topic == null || message == null) {
-                    return;
-                }
+    private void onStatusMessage(String topic, String message) {
+        txtJson.setText(String.format("Tópico: %s, Mensaje: %s", topic, message));
+        txtEspStatus.setText(String.format("Estado ESP: %s", message));
+    }
 
-                // Por las dudas, limpiamos espacios
-                topic = topic.trim();
+    // Última matriz del ESP (/simulator/matrix, retained). Se muestra sola
+    // mientras no haya cambios locales sin confirmar por el ESP; si los hay,
+    // queda en cache y la reconciliación la hace MatrixSync.
+    private void onMatrixStateMessage(String topic, byte[] payload) {
+        if (currentState == AppState.EDITING || hasUnsyncedMatrixChanges()) {
+            return;
+        }
+        updateMatrixFromPayload(payload);
+    }
 
-                // Debug en pantalla
-                txtJson.setText(String.format("Tópico: %s, Mensaje: %s", topic, message));
+    private boolean hasUnsyncedMatrixChanges() {
+        // isInSync() primero: toma los cambios pendientes de la matriz
+        return !matrixSync.isInSync() && matrixSync.getLocalVersion() > 0;
+    }
 
-                try {
-                    // Estado del ESP (/simulator/status)
-                    if (topic.equals(ConfigMQTT.topicStatus)) {
-                        txtEspStatus.setText(String.format("Estado ESP: %s", message));
-                    }
-                    // Matriz recibida desde el ESP (/simulator/cellval)
-                    else if (topic.equals(ConfigMQTT.topicReceiveMatrix)) {
-                        if (currentState == AppState.SYNC) {
-                            updateMatrixFromString(message);
-                            Toast.makeText(MainActivity.this,
-                                    "Matriz recibida y actualizada!",
-                                    Toast.LENGTH_SHORT).show();
-                        } else {
-                            Toast.makeText(MainActivity.this,
-                                    "Llegó matriz, pero no estás en pantalla de Sync",
-                                    Toast.LENGTH_SHORT).show();
-                        }
-                    }
+    // Pinta lo último que se supo del ESP hasta que llegue el dato vivo.
+    // La versión no se adopta: puede estar vieja, la próxima sync va completa.
+    // Llega cuando terminó de leerse el archivo: no pisa el estado vivo ni
+    // lo que se haya editado mientras tanto.
+    private void restoreLastKnownState() {
+        if (isDestroyed()) {
+            return;
+        }
+        byte[] status = lastValues.get(ConfigMQTT.topicStatus);
+        if (status != null && latestEspStatus == null) {
+            txtEspStatus.setText(String.format("Estado ESP: %s (último conocido)",
+                    new String(status, StandardCharsets.US_ASCII)));
+        }
+        if (currentState != AppState.EDITING && !hasUnsyncedMatrixChanges()) {
+            showCachedMatrix();
+        }
+    }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
+    // Viene del ESP: se escribe como cambio de la sync, que no lo manda de vuelta
+    private boolean showCachedMatrix() {
+        byte[] cached = lastValues.get(activeDevice().topicMatrixState);
+        if (cached == null
+                || !matrix.decode(matrixSync.consumer(), cached, MatrixSync.bodyOffset(cached))) {
+            return false;
+        }
+        if (matrixAdapter != null) {
+            matrixAdapter.refresh(matrixGridView);
+        }
+        return true;
+    }
+
+    // Matriz recibida desde el ESP (/simulator/cellval)
+    private void onMatrixMessage(String topic, byte[] payload) {
+        try {
+            if (MatrixSync.isAck(payload)) {
+                // "@v": el ESP confirma en qué versión quedó. Llega en cada
+                // edición, así que se procesa sobre los bytes, sin debug en pantalla
+                latencyProbe.echoReceived(LatencyProbe.Kind.SYNC, payload, 0, payload.length);
+                if (matrixSync.onPeerVersion(MatrixSync.versionOf(payload))) {
+                    matrixSync.forceSnapshot(activeDevice().getMatrixFormat());
                 }
+                return;
             }
+
+            // Debug en pantalla
+            String shown = MatrixCodec.isBinary(payload, MatrixSync.bodyOffset(payload))
+                    ? "[binario " + payload.length + " bytes]"
+                    : new String(payload, StandardCharsets.US_ASCII);
+            txtJson.setText(String.format("Tópico: %s, Mensaje: %s", topic, shown));
+
+            if (currentState == AppState.SYNC) {
+                updateMatrixFromPayload(payload);
+                Toast.makeText(MainActivity.this,
+                        "Matriz recibida y actualizada!",
+                        Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(MainActivity.this,
+                        "Llegó matriz, pero no estás en pantalla de Sync",
+                        Toast.LENGTH_SHORT).show();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -441,6 +654,7 @@ public class MainActivity extends AppCompatActivity
     // ============================
 
     private void setPhoneState(AppState newState) {
+        TraceBuffer.APP.record(TraceBuffer.APP_STATE, newState.ordinal(), 0);
         currentState = newState;
         if (newState == AppState.IDLE) {
             txtPhoneState.setText("Estado App: Idle");
@@ -530,10 +744,11 @@ public class MainActivity extends AppCompatActivity
 
                     if (speed > SHAKE_THRESHOLD) {
                         if (currentState == AppState.IDLE) {
+                            TraceBuffer.APP.record(TraceBuffer.SENSOR, TraceBuffer.SENSOR_SHAKE, (int) speed);
                             Toast.makeText(this,
                                     "¡Shake detectado! Reproduciendo...",
                                     Toast.LENGTH_SHORT).show();
-                            publishMessage(ConfigMQTT.topicState, "PLAY_ALL");
+                            sendState("PLAY_ALL");
                             lastSensorUpdateTime = currentTime + 1000;
                         }
                     }
@@ -549,9 +764,9 @@ public class MainActivity extends AppCompatActivity
     private void incrementCellValue() {
         if (selectedRow == -1 || selectedCol == -1) return;
 
-        int currentValue = matrixVals[selectedRow][selectedCol];
+        int currentValue = matrix.get(selectedRow, selectedCol);
         int newValue = currentValue + 1;
-        int maxValue = (selectedCol == 0) ? 15 : 127;
+        int maxValue = MatrixCodec.maxValue(selectedCol);
 
         if (newValue > maxValue) {
             newValue = maxValue;
@@ -562,7 +777,7 @@ public class MainActivity extends AppCompatActivity
     private void decrementCellValue() {
         if (selectedRow == -1 || selectedCol == -1) return;
 
-        int currentValue = matrixVals[selectedRow][selectedCol];
+        int currentValue = matrix.get(selectedRow, selectedCol);
         int newValue = currentValue - 1;
 
         if (newValue < 0) {
@@ -573,8 +788,12 @@ public class MainActivity extends AppCompatActivity
     }
 
     private void updateCellValue(int newValue) {
-        matrixVals[selectedRow][selectedCol] = newValue;
-        matrixAdapter.notifyDataSetChanged();
+        TraceBuffer.APP.record(TraceBuffer.SENSOR, TraceBuffer.SENSOR_GYRO, newValue);
+        if (!matrix.set(selectedRow, selectedCol, newValue)) {
+            return;   // ya estaba en el tope
+        }
+        matrixAdapter.refresh(matrixGridView);
+        editQueue.enqueue(selectedRow, selectedCol, newValue);
         txtJson.setText("Valor cambiado por giroscopio: " + newValue);
     }
 
@@ -606,32 +825,31 @@ public class MainActivity extends AppCompatActivity
         builder.show();
     }
 
+    // Vuelve enseguida: el SongStore se abre y la escribe en su propio hilo.
+    // Se guarda la matriz de este momento, aunque el store tarde en abrir.
+    // Si el mismo patrón ya estaba guardado, la nueva sólo lo referencia.
     private void saveSong(String name) {
-        SharedPreferences prefs = getSharedPreferences(
-                SavedSongsActivity.SONGS_PREFS_KEY, MODE_PRIVATE);
-        String json = prefs.getString(SavedSongsActivity.SONGS_LIST_KEY, null);
-        Gson gson = new Gson();
-        Type type = new com.google.gson.reflect.TypeToken<ArrayList<Song>>() {}.getType();
-        ArrayList<Song> songList = gson.fromJson(json, type);
-        if (songList == null) {
-            songList = new ArrayList<>();
-        }
-
-        int[][] matrixToSave = new int[ROWS][COLS];
-        for (int i = 0; i < ROWS; i++) {
-            for (int j = 0; j < COLS; j++) {
-                matrixToSave[i][j] = matrixVals[i][j];
+        int[][] values = matrix.toArray();
+        SavedSongsActivity.songStore(this, new SavedSongsActivity.StoreCallback() {
+            @Override
+            public void onStore(SongStore store) {
+                SongInfo existing = store.findByContent(values);
+                store.insert(name, values);
+                if (existing != null) {
+                    Toast.makeText(MainActivity.this, "Canción '" + name
+                            + "' guardada (el patrón ya estaba como '" + existing.getName() + "').",
+                            Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(MainActivity.this, "Canción '" + name + "' guardada.",
+                            Toast.LENGTH_SHORT).show();
+                }
             }
-        }
 
-        songList.add(new Song(name, matrixToSave));
-
-        SharedPreferences.Editor editor = prefs.edit();
-        String updatedJson = gson.toJson(songList);
-        editor.putString(SavedSongsActivity.SONGS_LIST_KEY, updatedJson);
-        editor.apply();
-
-        Toast.makeText(this, "Canción '" + name + "' guardada.", Toast.LENGTH_SHORT).show();
+            @Override
+            public void onError(IOException error) {
+                Toast.makeText(MainActivity.this, "No se pudo guardar la canción", Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     @Override
@@ -641,61 +859,396 @@ public class MainActivity extends AppCompatActivity
         super.onActivityResult(requestCode, resultCode, data);
 
         if (requestCode == LOAD_SONG_REQUEST_CODE && resultCode == RESULT_OK) {
-            if (data != null && data.hasExtra("loadedSong")) {
-                Song loadedSong = (Song) data.getSerializableExtra("loadedSong");
-                if (loadedSong != null) {
-                    this.matrixVals = loadedSong.getMatrix();
-                    matrixAdapter = new MatrixAdapter(this, matrixVals, this);
-                    matrixGridView.setAdapter(matrixAdapter);
+            if (data != null && data.hasExtra(SavedSongsActivity.EXTRA_SONG_ID)) {
+                loadSong(data.getLongExtra(SavedSongsActivity.EXTRA_SONG_ID, 0));
+            }
+        }
+    }
 
-                    Toast.makeText(this,
-                            "Canción '" + loadedSong.getName() + "' cargada.",
-                            Toast.LENGTH_SHORT).show();
+    // Se copia sobre la matriz: sólo las celdas distintas se repintan y van
+    // en la próxima sync
+    private void loadSong(long id) {
+        SavedSongsActivity.songStore(this, new SavedSongsActivity.StoreCallback() {
+            @Override
+            public void onStore(SongStore store) {
+                if (!isDestroyed()) {
+                    loadSong(store, id);
                 }
             }
+
+            @Override
+            public void onError(IOException error) {
+                Toast.makeText(MainActivity.this, "No se pudo cargar la canción", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void loadSong(SongStore store, long id) {
+        SongInfo info;
+        int[][] loaded = new int[ROWS][COLS];
+        try {
+            info = store.info(id);
+            if (info == null || !store.loadMatrix(id, loaded)) {
+                info = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            info = null;
         }
+        if (info == null) {
+            Toast.makeText(this, "No se pudo cargar la canción", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        matrix.copyFrom(SequencerMatrix.NO_CONSUMER, loaded);
+        matrixAdapter.refresh(matrixGridView);
+        Toast.makeText(this,
+                "Canción '" + info.getName() + "' cargada.",
+                Toast.LENGTH_SHORT).show();
     }
 
     // ============================
     //   SYNC MATRIZ <-> ESP32
     // ============================
 
-    private void sendMatrixAsString() {
-        StringBuilder matrixString = new StringBuilder();
-        for (int i = 0; i < ROWS; i++) {
-            for (int j = 0; j < COLS; j++) {
-                matrixString.append(matrixVals[i][j]);
-                if (i < ROWS - 1 || j < COLS - 1) {
-                    matrixString.append(" ");
-                }
+    // Manda sólo las celdas que cambiaron desde la última versión que confirmó
+    // el ESP, o la matriz completa si no sabemos en qué versión está.
+    private void sendMatrix() {
+        int pending = matrixSync.pendingCells();
+        if (matrixSync.sync(activeDevice().getMatrixFormat())) {
+            Toast.makeText(this,
+                    "Matriz enviada! (" + pending + " celdas)",
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "La matriz ya está sincronizada", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Acepta tanto el formato texto como el binario (lo detecta MatrixCodec),
+    // con o sin el sobre de versión "@v ".
+    private void updateMatrixFromPayload(byte[] payload) {
+        if (!matrix.decode(matrixSync.consumer(), payload, MatrixSync.bodyOffset(payload))) {
+            Toast.makeText(this, "Formato de matriz desconocido", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        matrixSync.adoptSnapshot(MatrixSync.versionOf(payload));
+
+        if (matrixAdapter != null) {
+            matrixAdapter.refresh(matrixGridView);
+        }
+    }
+
+    // ============================
+    //   LATENCIA CELU <-> ESP32
+    // ============================
+
+    private static final int PING_BURST = 10;
+    private static final long PING_SPACING_MS = 100;
+
+    private void showLatencyDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle("Latencia MQTT")
+                .setMessage(latencyProbe.report())
+                .setPositiveButton("Ping x" + PING_BURST, (dialog, which) -> sendPingBurst())
+                .setNeutralButton("Guardar", (dialog, which) -> dumpLatencyAndTrace())
+                .setNegativeButton("Cerrar", null)
+                .show();
+    }
+
+    private void sendPingBurst() {
+        if (mqttHandler == null || !mqttHandler.isConnected()) {
+            Toast.makeText(this, "Sin conexión MQTT", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        for (int i = 0; i < PING_BURST; i++) {
+            // El timestamp se toma al momento de mandar, no al programarlo
+            mainHandler.postDelayed(() ->
+                    mqttHandler.publish(ConfigMQTT.topicPing, latencyProbe.newPing()),
+                    i * PING_SPACING_MS);
+        }
+        Toast.makeText(this, "Midiendo...", Toast.LENGTH_SHORT).show();
+    }
+
+    // Guarda las latencias y la traza de eventos (TraceBuffer) con el mismo
+    // timestamp en el nombre, para poder cruzarlas después. Se escribe en
+    // ioExecutor (los dos son thread-safe) y el aviso vuelve al principal.
+    private void dumpLatencyAndTrace() {
+        Context app = getApplicationContext();
+        LatencyProbe probe = latencyProbe;
+        long now = System.currentTimeMillis();
+        ioExecutor.execute(() -> {
+            File dir = app.getExternalFilesDir(null);
+            if (dir == null) {
+                dir = app.getFilesDir();
             }
+            File file = new File(dir, "latency_" + now + ".txt");
+            File traceFile = new File(dir, "trace_" + now + ".txt");
+            String message;
+            int length;
+            try (Writer out = new FileWriter(file);
+                 Writer traceOut = new BufferedWriter(new FileWriter(traceFile))) {
+                probe.dump(out);
+                TraceBuffer.APP.dump(traceOut);
+                message = "Guardado en " + dir.getAbsolutePath();
+                length = Toast.LENGTH_LONG;
+            } catch (IOException e) {
+                e.printStackTrace();
+                message = "No se pudo guardar";
+                length = Toast.LENGTH_SHORT;
+            }
+            String shown = message;
+            int duration = length;
+            mainHandler.post(() -> Toast.makeText(app, shown, duration).show());
+        });
+    }
+
+    // ============================
+    //   BROKER LOCAL (LAN)
+    // ============================
+
+    private boolean isLocalBrokerEnabled() {
+        return getSharedPreferences(MQTT_PREFS_KEY, MODE_PRIVATE)
+                .getBoolean(LOCAL_BROKER_KEY, false);
+    }
+
+    private void setLocalBrokerEnabled(boolean enabled) {
+        getSharedPreferences(MQTT_PREFS_KEY, MODE_PRIVATE)
+                .edit()
+                .putBoolean(LOCAL_BROKER_KEY, enabled)
+                .apply();
+
+        // connect() elige el broker según la preferencia; MqttHandler cambia
+        // de cliente solo porque cambió la URL
+        connect();
+        if (!enabled) {
+            stopLocalBroker();
+        }
+    }
+
+    private boolean startLocalBroker() {
+        if (localBroker == null) {
+            localBroker = new LocalBroker(LocalBroker.DEFAULT_PORT);
+        }
+        try {
+            localBroker.start();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(this,
+                    "No se pudo abrir el puerto " + LocalBroker.DEFAULT_PORT + ", uso el broker público",
+                    Toast.LENGTH_LONG).show();
+            return false;
         }
-        publishMessage(ConfigMQTT.topicSendMatrix, matrixString.toString());
-        Toast.makeText(this, "Matriz enviada!", Toast.LENGTH_SHORT).show();
     }
 
-    private void updateMatrixFromString(String matrixString) {
-        String[] values = matrixString.trim().split("\\s+");
-        int valueIndex = 0;
+    private void stopLocalBroker() {
+        if (localBroker != null) {
+            localBroker.stop();
+            localBroker = null;
+        }
+    }
 
-        for (int i = 0; i < ROWS; i++) {
-            for (int j = 0; j < COLS; j++) {
-                if (valueIndex < values.length) {
-                    try {
-                        matrixVals[i][j] = Integer.parseInt(values[valueIndex]);
-                        valueIndex++;
-                    } catch (NumberFormatException e) {
-                        matrixVals[i][j] = 0;
-                    }
-                } else {
-                    matrixVals[i][j] = 0;
-                }
+    private void showBrokerDialog() {
+        boolean enabled = isLocalBrokerEnabled();
+        String message;
+        if (enabled && localBroker != null && localBroker.isRunning()) {
+            List<String> ips = LocalBroker.localAddresses();
+            message = "Broker local en el puerto " + localBroker.getPort()
+                    + "\nIP para el ESP32: " + (ips.isEmpty() ? "sin red local" : TextUtils.join(", ", ips))
+                    + "\nClientes conectados: " + localBroker.clientCount();
+        } else {
+            message = "Usando " + ConfigMQTT.mqttServer;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("Broker MQTT")
+                .setMessage(message)
+                .setPositiveButton(enabled ? "Usar broker público" : "Usar broker local",
+                        (dialog, which) -> setLocalBrokerEnabled(!enabled))
+                .setNeutralButton("Equipos", (dialog, which) -> showDevicesDialog())
+                .setNegativeButton("Cerrar", null)
+                .show();
+    }
+
+    // ============================
+    //   VARIOS SECUENCIADORES
+    // ============================
+
+    // El equipo que se está editando: a él van la matriz, las ediciones y la
+    // fila a reproducir, y de él se escucha la matriz
+    private SequencerDevice activeDevice() {
+        return matrixSync.getDevice();
+    }
+
+    // Cambia el equipo que se edita. La matriz local no cambia: la próxima
+    // sync se la manda completa al equipo nuevo.
+    private void selectDevice(SequencerDevice device) {
+        SequencerDevice previous = matrixSync.getDevice();
+        editQueue.setTopic(device.topicEdit);
+        matrixSync.setDevice(device);
+
+        for (MessageDispatcher.Subscription sub : deviceSubs) {
+            sub.cancel();
+        }
+        deviceSubs.clear();
+        if (!previous.equals(device)) {
+            mqttHandler.unsubscribe(previous.topicReceiveMatrix);
+            mqttHandler.unsubscribe(previous.topicMatrixState);
+        }
+
+        MessageDispatcher dispatcher = mqttHandler.getDispatcher();
+        deviceSubs.add(dispatcher.subscribe(device.topicReceiveMatrix,
+                mainExecutor, this::onMatrixMessage));
+        deviceSubs.add(dispatcher.subscribe(device.topicMatrixState,
+                mainExecutor, this::onMatrixStateMessage));
+        deviceSubs.add(dispatcher.subscribe(device.topicMatrixState,
+                MessageDispatcher.DIRECT, (topic, payload) -> lastValues.put(topic, payload)));
+        // Matriz que manda el ESP32 (cellval) y la última que dejó (matrix,
+        // retained: llega apenas nos suscribimos)
+        subscribeToTopic(device.topicReceiveMatrix);
+        subscribeToTopic(device.topicMatrixState);
+
+        getSharedPreferences(MQTT_PREFS_KEY, MODE_PRIVATE)
+                .edit()
+                .putString(ACTIVE_DEVICE_KEY, device.getId())
+                .apply();
+    }
+
+    // Devuelve el equipo que se estaba editando la última vez
+    private SequencerDevice loadDevices() {
+        SharedPreferences prefs = getSharedPreferences(MQTT_PREFS_KEY, MODE_PRIVATE);
+        Set<String> binary = prefs.getStringSet(BINARY_DEVICES_KEY, Collections.emptySet());
+        deviceRegistry.add(SequencerDevice.MAIN.withMatrixFormat(formatOf(binary, SequencerDevice.MAIN.getId())));
+        for (String id : prefs.getStringSet(DEVICES_KEY, Collections.emptySet())) {
+            if (SequencerDevice.isValidId(id)) {
+                deviceRegistry.add(new SequencerDevice(id, formatOf(binary, id)));
             }
         }
+        SequencerDevice active = deviceRegistry.get(prefs.getString(ACTIVE_DEVICE_KEY, ""));
+        return active != null ? active : deviceRegistry.get(SequencerDevice.MAIN.getId());
+    }
 
-        if (matrixAdapter != null) {
-            matrixAdapter.setMatrix(matrixVals);
-            matrixGridView.invalidateViews();
+    private static MatrixCodec.Format formatOf(Set<String> binary, String id) {
+        return binary.contains(id) ? MatrixCodec.Format.BINARY : MatrixCodec.Format.TEXT;
+    }
+
+    private void saveDevices() {
+        Set<String> ids = new HashSet<>();
+        Set<String> binary = new HashSet<>();
+        for (SequencerDevice device : deviceRegistry.devices()) {
+            if (!device.isMain()) {
+                ids.add(device.getId());
+            }
+            if (device.getMatrixFormat() == MatrixCodec.Format.BINARY) {
+                binary.add(device.getId());
+            }
         }
+        getSharedPreferences(MQTT_PREFS_KEY, MODE_PRIVATE)
+                .edit()
+                .putStringSet(DEVICES_KEY, ids)
+                .putStringSet(BINARY_DEVICES_KEY, binary)
+                .apply();
+    }
+
+    private void showDevicesDialog() {
+        List<SequencerDevice> devices = deviceRegistry.devices();
+        String[] items = new String[devices.size()];
+        for (int i = 0; i < items.length; i++) {
+            SequencerDevice device = devices.get(i);
+            String status = deviceRegistry.statusOf(device);
+            items[i] = device.getName() + ": " + (status != null ? status : "--")
+                    + (device.getMatrixFormat() == MatrixCodec.Format.BINARY ? " (binario)" : "")
+                    + (device.equals(activeDevice()) ? " [editando]" : "");
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("Equipos (" + devices.size() + ")")
+                .setItems(items, (dialog, which) -> showDeviceOptions(devices.get(which)))
+                .setPositiveButton("Agregar", (dialog, which) -> showAddDeviceDialog())
+                .setNegativeButton("Cerrar", null)
+                .show();
+    }
+
+    private void showAddDeviceDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Agregar equipo");
+
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_TEXT);
+        input.setHint("DEVICE_ID del ESP32");
+        builder.setView(input);
+
+        builder.setPositiveButton("Agregar", (dialog, which) -> {
+            String deviceId = input.getText().toString().trim().toLowerCase(Locale.ROOT);
+            if (!SequencerDevice.isValidId(deviceId)) {
+                Toast.makeText(MainActivity.this,
+                        "Usá letras, números, '_' o '-' (\"all\" está reservado)",
+                        Toast.LENGTH_SHORT).show();
+            } else if (deviceRegistry.add(new SequencerDevice(deviceId))) {
+                saveDevices();
+            }
+        });
+        builder.setNegativeButton("Cancelar", (dialog, which) -> dialog.cancel());
+
+        builder.show();
+    }
+
+    private void showDeviceOptions(SequencerDevice device) {
+        boolean binary = device.getMatrixFormat() == MatrixCodec.Format.BINARY;
+        List<String> options = new ArrayList<>();
+        List<Runnable> actions = new ArrayList<>();
+        if (!device.equals(activeDevice())) {
+            options.add("Editar este equipo");
+            actions.add(() -> {
+                selectDevice(device);
+                Toast.makeText(this, "Editando " + device.getName()
+                        + ": la próxima sync le manda la matriz completa", Toast.LENGTH_SHORT).show();
+            });
+        }
+        options.add(binary ? "Mandar la matriz como texto" : "Mandar la matriz en binario");
+        actions.add(() -> setMatrixFormat(device, binary ? MatrixCodec.Format.TEXT : MatrixCodec.Format.BINARY));
+        if (!device.isMain()) {
+            options.add("Quitar");
+            actions.add(() -> confirmRemoveDevice(device));
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(device.getName())
+                .setItems(options.toArray(new String[0]), (dialog, which) -> actions.get(which).run())
+                .setNegativeButton("Cerrar", null)
+                .show();
+    }
+
+    // El cambio vale desde la próxima sync, que va completa: el ESP tiene
+    // que ver la matriz entera en el formato nuevo
+    private void setMatrixFormat(SequencerDevice device, MatrixCodec.Format format) {
+        SequencerDevice updated = device.withMatrixFormat(format);
+        if (!deviceRegistry.update(updated)) {
+            return;
+        }
+        saveDevices();
+        if (updated.equals(activeDevice())) {
+            matrixSync.setDevice(updated);
+        }
+        Toast.makeText(this, device.getName() + ": matriz en "
+                + (format == MatrixCodec.Format.BINARY ? "binario" : "texto"), Toast.LENGTH_SHORT).show();
+    }
+
+    private void confirmRemoveDevice(SequencerDevice device) {
+        if (device.isMain()) {
+            Toast.makeText(this, "El equipo principal no se puede quitar", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Quitar " + device.getName() + "?")
+                .setPositiveButton("Quitar", (dialog, which) -> {
+                    if (device.equals(activeDevice())) {
+                        selectDevice(deviceRegistry.get(SequencerDevice.MAIN.getId()));
+                    }
+                    deviceRegistry.remove(device.getId());
+                    saveDevices();
+                })
+                .setNegativeButton("Cancelar", null)
+                .show();
     }
 }
@@ -9,12 +9,17 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.EditText;
+import android.widget.GridView;
 import android.widget.Toast;
 
+// Grilla de la SequencerMatrix. Lo tipeado se escribe en la matriz como
+// cambio de la grilla, y lo que cambia por otro lado se repinta con
+// refresh(): sólo las celdas marcadas, no toda la grilla.
 public class MatrixAdapter extends BaseAdapter {
 
     private final Context context;
-    private int[][] matrix;
+    private final SequencerMatrix matrix;
+    private final int consumer;
     private final OnCellEditListener listener;
 
     private int selectedRow = -1;
@@ -25,9 +30,10 @@ public class MatrixAdapter extends BaseAdapter {
         void onCellEdited(int row, int col, int value);
     }
 
-    public MatrixAdapter(Context context, int[][] matrix, OnCellEditListener listener) {
+    public MatrixAdapter(Context context, SequencerMatrix matrix, OnCellEditListener listener) {
         this.context = context;
         this.matrix = matrix;
+        this.consumer = matrix.addConsumer();
         this.listener = listener;
     }
 
@@ -45,22 +51,35 @@ public class MatrixAdapter extends BaseAdapter {
         notifyDataSetChanged();
     }
 
-    public void setMatrix(int[][] newMatrix) {
-        this.matrix = newMatrix;
-        notifyDataSetChanged();
+    // Repinta las celdas que cambiaron desde la última vez (las que se ven;
+    // el resto se pinta al scrollear). Si cambió todo, la grilla entera.
+    public void refresh(GridView grid) {
+        long bits = matrix.drain(consumer);
+        if (bits == 0) {
+            return;
+        }
+        if (bits == SequencerMatrix.ALL_CELLS || grid == null) {
+            notifyDataSetChanged();
+            return;
+        }
+        int first = grid.getFirstVisiblePosition();
+        for (; bits != 0; bits &= bits - 1) {
+            int position = Long.numberOfTrailingZeros(bits);
+            View child = grid.getChildAt(position - first);
+            if (child != null) {
+                getView(position, child, grid);
+            }
+        }
     }
 
     @Override
     public int getCount() {
-        if (matrix == null || matrix.length == 0) return 0;
-        return matrix.length * matrix[0].length;
+        return SequencerMatrix.CELLS;
     }
 
     @Override
     public Object getItem(int position) {
-        int row = position / matrix[0].length;
-        int col = position % matrix[0].length;
-        return matrix[row][col];
+        return matrix.get(SequencerMatrix.rowOf(position), SequencerMatrix.colOf(position));
     }
 
     @Override
@@ -81,13 +100,12 @@ public class MatrixAdapter extends BaseAdapter {
             holder = (ViewHolder) convertView.getTag();
         }
 
-        final int numCols = matrix[0].length;
-        final int row = position / numCols;
-        final int col = position % numCols;
+        final int row = SequencerMatrix.rowOf(position);
+        final int col = SequencerMatrix.colOf(position);
 
         // Desenganchar watcher viejo antes de setText para evitar loops
         holder.editText.removeTextChangedListener(holder.textWatcher);
-        holder.editText.setText(String.valueOf(matrix[row][col]));
+        holder.editText.setText(String.valueOf(matrix.get(row, col)));
         holder.textWatcher.updatePosition(row, col);
         holder.editText.addTextChangedListener(holder.textWatcher);
 
@@ -106,7 +124,7 @@ public class MatrixAdapter extends BaseAdapter {
 
         holder.editText.setOnClickListener(v -> {
             if (listener != null) {
-                listener.onCellEdited(row, col, matrix[row][col]);
+                listener.onCellEdited(row, col, matrix.get(row, col));
             }
         });
 
@@ -144,18 +162,14 @@ public class MatrixAdapter extends BaseAdapter {
                 try {
                     int newValue = s.length() > 0 ? Integer.parseInt(s.toString()) : 0;
 
-                    if (col == 0 && (newValue < 0 || newValue > 15)) {
-                        Toast.makeText(context, "El valor debe estar entre 0 y 15", Toast.LENGTH_SHORT).show();
-                        s.replace(0, s.length(), String.valueOf(matrix[row][col]));
-                        return;
-                    } else if (col > 0 && (newValue < 0 || newValue > 127)) {
-                        Toast.makeText(context, "El valor debe estar entre 0 y 127", Toast.LENGTH_SHORT).show();
-                        s.replace(0, s.length(), String.valueOf(matrix[row][col]));
+                    if (!SequencerMatrix.isValid(col, newValue)) {
+                        Toast.makeText(context, "El valor debe estar entre 0 y " + MatrixCodec.maxValue(col), Toast.LENGTH_SHORT).show();
+                        s.replace(0, s.length(), String.valueOf(matrix.get(row, col)));
                         return;
                     }
 
-                    if (matrix[row][col] != newValue) {
-                        matrix[row][col] = newValue;
+                    // Cambio de la grilla: ya se ve, se marca para los demás
+                    if (matrix.set(consumer, row, col, newValue)) {
                         if (listener != null) {
                             listener.onCellEdited(row, col, newValue);
                         }
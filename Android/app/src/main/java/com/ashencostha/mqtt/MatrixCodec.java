@@ -0,0 +1,183 @@
+package com.ashencostha.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+// Codec de la matriz 16x4 para /simulator/getcell y /simulator/cellval.
+//
+// TEXT   (legacy): "v v v ... v", 64 números decimales separados por espacio.
+// BINARY (v1)    : 1 byte de cabecera (0xB0 | versión) + la matriz empaquetada
+//                  fila por fila, MSB primero: col 0 en 4 bits y cols 1..3 en
+//                  7 bits cada una (25 bits por fila, 51 bytes en total).
+//
+// decode() detecta solo el formato, así el ESP puede contestar en cualquiera
+// de los dos. Ninguno de los dos decoders aloca memoria. Las variantes con
+// offset permiten saltear un prefijo (ej: el sobre de versión de MatrixSync).
+public final class MatrixCodec {
+
+    public enum Format { TEXT, BINARY }
+
+    public static final int ROWS = 16;
+    public static final int COLS = 4;
+
+    public static final int  BINARY_VERSION = 1;
+    public static final byte BINARY_HEADER  = (byte) (0xB0 | BINARY_VERSION);
+    private static final int BITS_PER_ROW   = 4 + 7 * (COLS - 1);
+    public static final int  BINARY_SIZE    = 1 + (ROWS * BITS_PER_ROW + 7) / 8;
+
+    private MatrixCodec() {}
+
+    public static int maxValue(int col) {
+        return (col == 0) ? 15 : 127;
+    }
+
+    private static int bitsFor(int col) {
+        return (col == 0) ? 4 : 7;
+    }
+
+    private static int clamp(int value, int col) {
+        if (value < 0) return 0;
+        return Math.min(value, maxValue(col));
+    }
+
+    // ============================
+    //   ENCODE
+    // ============================
+
+    public static byte[] encode(int[][] matrix, Format format) {
+        if (format == Format.BINARY) {
+            return encodeBinary(matrix);
+        }
+        return encodeText(matrix).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static String encodeText(int[][] matrix) {
+        StringBuilder out = new StringBuilder(ROWS * COLS * 4);
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                out.append(matrix[i][j]);
+                if (i < ROWS - 1 || j < COLS - 1) {
+                    out.append(' ');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    public static byte[] encodeBinary(int[][] matrix) {
+        byte[] out = new byte[BINARY_SIZE];
+        out[0] = BINARY_HEADER;
+
+        int bitPos = 8;
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                int bits  = bitsFor(j);
+                int value = clamp(matrix[i][j], j);
+                for (int b = bits - 1; b >= 0; b--) {
+                    if (((value >> b) & 1) != 0) {
+                        out[bitPos >> 3] |= (byte) (0x80 >>> (bitPos & 7));
+                    }
+                    bitPos++;
+                }
+            }
+        }
+        return out;
+    }
+
+    // ============================
+    //   DECODE
+    // ============================
+
+    public static boolean isBinary(byte[] payload) {
+        return isBinary(payload, 0);
+    }
+
+    public static boolean isBinary(byte[] payload, int offset) {
+        return payload != null && payload.length > offset && (payload[offset] & 0xF0) == 0xB0;
+    }
+
+    // Escribe sobre 'into' (16x4). Devuelve false si el payload no se entiende.
+    public static boolean decode(byte[] payload, int[][] into) {
+        return decode(payload, 0, into);
+    }
+
+    public static boolean decode(byte[] payload, int offset, int[][] into) {
+        if (payload == null) {
+            return false;
+        }
+        if (isBinary(payload, offset)) {
+            return decodeBinary(payload, offset, into);
+        }
+        decodeText(payload, offset, into);
+        return true;
+    }
+
+    public static boolean decodeBinary(byte[] payload, int[][] into) {
+        return decodeBinary(payload, 0, into);
+    }
+
+    public static boolean decodeBinary(byte[] payload, int offset, int[][] into) {
+        if (payload.length - offset < BINARY_SIZE || payload[offset] != BINARY_HEADER) {
+            return false;
+        }
+
+        int bitPos = (offset + 1) * 8;
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                int bits  = bitsFor(j);
+                int value = 0;
+                for (int b = 0; b < bits; b++) {
+                    int bit = (payload[bitPos >> 3] >> (7 - (bitPos & 7))) & 1;
+                    value = (value << 1) | bit;
+                    bitPos++;
+                }
+                into[i][j] = value;
+            }
+        }
+        return true;
+    }
+
+    // Mismo comportamiento que el parseo viejo con split + parseInt: los
+    // valores faltantes o inválidos quedan en 0.
+    public static void decodeText(byte[] payload, int[][] into) {
+        decodeText(payload, 0, into);
+    }
+
+    public static void decodeText(byte[] payload, int offset, int[][] into) {
+        int cell = 0;
+        int value = 0;
+        boolean inToken = false;
+        boolean validToken = true;
+        boolean negative = false;
+
+        for (int k = offset; k <= payload.length && cell < ROWS * COLS; k++) {
+            int c = (k < payload.length) ? payload[k] : ' ';
+            boolean separator = (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+
+            if (!separator) {
+                if (!inToken) {
+                    inToken = true;
+                    validToken = true;
+                    negative = false;
+                    value = 0;
+                    if (c == '-' || c == '+') {
+                        negative = (c == '-');
+                        continue;
+                    }
+                }
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                } else {
+                    validToken = false;
+                }
+            } else if (inToken) {
+                into[cell / COLS][cell % COLS] = validToken ? (negative ? -value : value) : 0;
+                cell++;
+                inToken = false;
+            }
+        }
+
+        for (; cell < ROWS * COLS; cell++) {
+            into[cell / COLS][cell % COLS] = 0;
+        }
+    }
+}
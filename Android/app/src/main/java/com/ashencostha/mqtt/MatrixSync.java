@@ -0,0 +1,267 @@
+package com.ashencostha.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+// Sincronización versionada de la matriz celu -> ESP32.
+//
+// Cada cambio local sube la versión y anota en qué versión cambió cada celda.
+// El ESP confirma con "@<version>" en /simulator/cellval. Con eso:
+//   - Si el ESP está en la última versión confirmada, se manda sólo el delta
+//     por /simulator/edit:      "@<base>:<nueva>;r c v;r c v;..."
+//   - Si no sabemos en qué versión está (o divergió), va la foto completa
+//     por /simulator/getcell:   "@<nueva> " + matriz (texto o binaria)
+// El ESP contesta siempre con su versión actual; si no coincide con la que
+// mandamos, la próxima sync es completa.
+//
+// Va al equipo de setDevice() (el principal si no se elige otro), con sus
+// topics "getcell" y "edit".
+//
+// Con bind() toma los cambios directamente del bitmap de la SequencerMatrix
+// (todo lo que cambió entre dos consultas va en una misma versión); sin eso,
+// cada cambio se avisa con markChanged().
+public class MatrixSync {
+
+    public interface Sender {
+        void send(String topic, byte[] payload);
+    }
+
+    public static final int  NO_VERSION = -1;
+    public static final byte VERSION_MARK = '@';
+
+    private static final int CELLS = MatrixCodec.ROWS * MatrixCodec.COLS;
+    // Bytes aproximados por celda en un delta ("rr c vvv;")
+    private static final int DELTA_BYTES_PER_CELL = 9;
+
+    private final Sender sender;
+    private SequencerDevice device = SequencerDevice.MAIN;
+
+    private final int[] cellVersion = new int[CELLS];
+    private int localVersion = 0;
+    private int ackedVersion = NO_VERSION;     // última versión confirmada por el ESP
+    private int inFlightVersion = NO_VERSION;  // versión mandada, esperando "@v"
+
+    private SequencerMatrix bound;
+    private int consumer = SequencerMatrix.NO_CONSUMER;
+    private final int[][] scratch = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+
+    public MatrixSync(Sender sender) {
+        this.sender = sender;
+    }
+
+    public int getLocalVersion() {
+        return localVersion;
+    }
+
+    public int getAckedVersion() {
+        return ackedVersion;
+    }
+
+    public synchronized boolean isInSync() {
+        collect();
+        return ackedVersion == localVersion;
+    }
+
+    // Desde acá la sync sigue los cambios de 'matrix'
+    public synchronized void bind(SequencerMatrix matrix) {
+        this.bound = matrix;
+        this.consumer = matrix.addConsumer();
+    }
+
+    // Para escribir en la matriz lo que llega del ESP sin que vuelva como
+    // cambio local (SequencerMatrix.set/decode con este 'source')
+    public int consumer() {
+        return consumer;
+    }
+
+    // Pasa lo que cambió en la matriz desde la última vez a una versión nueva
+    private void collect() {
+        if (bound == null) {
+            return;
+        }
+        long bits = bound.drain(consumer);
+        if (bits == 0) {
+            return;
+        }
+        localVersion++;
+        for (; bits != 0; bits &= bits - 1) {
+            cellVersion[Long.numberOfTrailingZeros(bits)] = localVersion;
+        }
+    }
+
+    public synchronized void markChanged(int row, int col) {
+        localVersion++;
+        cellVersion[row * MatrixCodec.COLS + col] = localVersion;
+    }
+
+    // Cambió toda la matriz (ej: se cargó una canción)
+    public synchronized void markAllChanged() {
+        localVersion++;
+        for (int i = 0; i < CELLS; i++) {
+            cellVersion[i] = localVersion;
+        }
+    }
+
+    // Llegó una foto completa del ESP: la adoptamos como base común.
+    public synchronized void adoptSnapshot(int peerVersion) {
+        collect();
+        if (peerVersion == NO_VERSION) {
+            // ESP sin versionado: no sabemos qué tiene, la próxima sync es completa
+            ackedVersion = NO_VERSION;
+            return;
+        }
+        for (int i = 0; i < CELLS; i++) {
+            cellVersion[i] = Math.min(cellVersion[i], peerVersion);
+        }
+        localVersion = peerVersion;
+        ackedVersion = peerVersion;
+        inFlightVersion = NO_VERSION;
+    }
+
+    // Respuesta "@v" del ESP. Devuelve true si divergimos y hace falta
+    // mandar la foto completa.
+    public synchronized boolean onPeerVersion(int peerVersion) {
+        if (peerVersion == inFlightVersion) {
+            ackedVersion = peerVersion;
+            inFlightVersion = NO_VERSION;
+            return false;
+        }
+        if (peerVersion == ackedVersion) {
+            // Confirmación repetida de algo que ya teníamos
+            return false;
+        }
+        ackedVersion = NO_VERSION;
+        inFlightVersion = NO_VERSION;
+        return true;
+    }
+
+    // Desde acá se sincroniza con 'device'. No sabemos qué tiene: la próxima
+    // sync va completa.
+    public synchronized void setDevice(SequencerDevice device) {
+        this.device = device;
+        reset();
+    }
+
+    public synchronized SequencerDevice getDevice() {
+        return device;
+    }
+
+    // Ya no sabemos qué tiene el ESP (ej: cambió el formato o el equipo):
+    // la próxima sync va completa
+    public synchronized void reset() {
+        ackedVersion = NO_VERSION;
+        inFlightVersion = NO_VERSION;
+    }
+
+    public synchronized int pendingCells() {
+        collect();
+        if (ackedVersion == NO_VERSION) {
+            return CELLS;
+        }
+        int count = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if (cellVersion[i] > ackedVersion) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Como sync(int[][], ...) con la matriz de bind()
+    public synchronized boolean sync(MatrixCodec.Format format) {
+        bound.copyTo(scratch);
+        return sync(scratch, format);
+    }
+
+    public synchronized void forceSnapshot(MatrixCodec.Format format) {
+        bound.copyTo(scratch);
+        forceSnapshot(scratch, format);
+    }
+
+    // Manda lo necesario para que el ESP quede en localVersion.
+    // Devuelve false si ya estaba sincronizado.
+    public synchronized boolean sync(int[][] matrix, MatrixCodec.Format format) {
+        collect();
+        if (ackedVersion != NO_VERSION && ackedVersion == localVersion) {
+            return false;
+        }
+
+        int pending = pendingCells();
+        int snapshotBytes = (format == MatrixCodec.Format.BINARY)
+                ? MatrixCodec.BINARY_SIZE : CELLS * 3;
+
+        if (ackedVersion == NO_VERSION || pending * DELTA_BYTES_PER_CELL >= snapshotBytes) {
+            sendSnapshot(matrix, format);
+        } else {
+            sendDelta(matrix);
+        }
+        inFlightVersion = localVersion;
+        return true;
+    }
+
+    // Fuerza una foto completa (ej: después de una divergencia)
+    public synchronized void forceSnapshot(int[][] matrix, MatrixCodec.Format format) {
+        ackedVersion = NO_VERSION;
+        sync(matrix, format);
+    }
+
+    private void sendSnapshot(int[][] matrix, MatrixCodec.Format format) {
+        byte[] body = MatrixCodec.encode(matrix, format);
+        byte[] head = ("@" + localVersion + " ").getBytes(StandardCharsets.US_ASCII);
+
+        byte[] out = new byte[head.length + body.length];
+        System.arraycopy(head, 0, out, 0, head.length);
+        System.arraycopy(body, 0, out, head.length, body.length);
+        sender.send(device.topicSendMatrix, out);
+    }
+
+    private void sendDelta(int[][] matrix) {
+        StringBuilder msg = new StringBuilder(16 + CELLS * DELTA_BYTES_PER_CELL);
+        msg.append('@').append(ackedVersion).append(':').append(localVersion);
+        for (int i = 0; i < CELLS; i++) {
+            if (cellVersion[i] > ackedVersion) {
+                int row = i / MatrixCodec.COLS;
+                int col = i % MatrixCodec.COLS;
+                msg.append(';').append(row).append(' ').append(col).append(' ')
+                   .append(matrix[row][col]);
+            }
+        }
+        sender.send(device.topicEdit, msg.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // ============================
+    //   SOBRE DE VERSIÓN "@v "
+    // ============================
+
+    // Versión del sobre, o NO_VERSION si el payload no trae "@v".
+    public static int versionOf(byte[] payload) {
+        if (payload == null || payload.length < 2 || payload[0] != VERSION_MARK) {
+            return NO_VERSION;
+        }
+        int value = 0;
+        int k = 1;
+        for (; k < payload.length && payload[k] >= '0' && payload[k] <= '9'; k++) {
+            value = value * 10 + (payload[k] - '0');
+        }
+        return (k > 1) ? value : NO_VERSION;
+    }
+
+    // Offset donde empieza la matriz, salteando el sobre si lo hay.
+    public static int bodyOffset(byte[] payload) {
+        if (versionOf(payload) == NO_VERSION) {
+            return 0;
+        }
+        int k = 1;
+        while (k < payload.length && payload[k] >= '0' && payload[k] <= '9') {
+            k++;
+        }
+        if (k < payload.length && payload[k] == ' ') {
+            k++;
+        }
+        return k;
+    }
+
+    // "@v" solo, sin matriz: es una confirmación del ESP
+    public static boolean isAck(byte[] payload) {
+        return versionOf(payload) != NO_VERSION && bodyOffset(payload) >= payload.length;
+    }
+}
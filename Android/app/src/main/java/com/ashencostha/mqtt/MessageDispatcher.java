@@ -0,0 +1,244 @@
+package com.ashencostha.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Registro de listeners por topic, dentro del proceso.
+// Reemplaza el sendBroadcast + BroadcastReceiver por mensaje: MqttHandler
+// llama a dispatch() desde el hilo de Paho, el payload se decodifica una sola
+// vez por tipo y cada listener lo recibe en el Executor que eligió (ej: el
+// hilo principal para tocar la UI).
+//
+// Los topics de subscribe() son filtros MQTT: admiten '+' (un nivel) y '#'
+// (el resto). Se guardan en un trie por nivel y, la primera vez que llega un
+// topic, se resuelve la lista de listeners y queda cacheada; los mensajes
+// siguientes de ese topic son un get() en un mapa, sin armar Strings.
+public class MessageDispatcher {
+
+    public interface Decoder<T> {
+        T decode(byte[] payload);
+    }
+
+    public interface Listener<T> {
+        void onMessage(String topic, T message);
+    }
+
+    // Decoders comunes
+    public static final Decoder<byte[]> RAW   = payload -> payload;
+    public static final Decoder<String> ASCII = payload -> new String(payload, StandardCharsets.US_ASCII);
+
+    // Ejecuta el listener ahí mismo, en el hilo de Paho. Con este executor
+    // dispatch() no aloca ningún Runnable.
+    public static final Executor DIRECT = Runnable::run;
+
+    // Topics distintos cacheados como máximo (con comodines podrían ser muchos)
+    private static final int MAX_ROUTES = 256;
+
+    private static final Subscription[] NO_ROUTE = new Subscription[0];
+
+    public final class Subscription {
+        private final String topic;
+        private final Decoder<?> decoder;
+        private final Executor executor;
+        private final Listener<?> listener;
+
+        private Subscription(String topic, Decoder<?> decoder, Executor executor, Listener<?> listener) {
+            this.topic = topic;
+            this.decoder = decoder;
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public void cancel() {
+            unsubscribe(this);
+        }
+    }
+
+    // Un nivel del trie. Los hijos literales van en arrays chicos: se comparan
+    // contra el pedazo del topic con regionMatches, sin hacer substring.
+    private static final class Node {
+        String[] levels = new String[0];
+        Node[] children = new Node[0];
+        Node plus;                                            // hijo '+'
+        final List<Subscription> exact = new ArrayList<>();   // el filtro termina acá
+        final List<Subscription> rest  = new ArrayList<>();   // el filtro sigue con '#'
+
+        Node child(String level, boolean create) {
+            for (int i = 0; i < levels.length; i++) {
+                if (levels[i].equals(level)) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            int n = levels.length;
+            String[] newLevels = new String[n + 1];
+            Node[] newChildren = new Node[n + 1];
+            System.arraycopy(levels, 0, newLevels, 0, n);
+            System.arraycopy(children, 0, newChildren, 0, n);
+            newLevels[n] = level;
+            newChildren[n] = new Node();
+            levels = newLevels;
+            children = newChildren;
+            return newChildren[n];
+        }
+    }
+
+    // Trie y cache se tocan sólo con el lock de this; el get() del cache no
+    private final Node root = new Node();
+    private final Map<String, Subscription[]> routes = new ConcurrentHashMap<>();
+
+    public <T> Subscription subscribe(String topic, Decoder<T> decoder,
+                                      Executor executor, Listener<T> listener) {
+        Subscription sub = new Subscription(topic, decoder, executor, listener);
+        synchronized (this) {
+            listFor(topic, true).add(sub);
+            routes.clear();
+        }
+        return sub;
+    }
+
+    public Subscription subscribe(String topic, Executor executor, Listener<byte[]> listener) {
+        return subscribe(topic, RAW, executor, listener);
+    }
+
+    public synchronized void unsubscribe(Subscription sub) {
+        // Los nodos vacíos quedan: son pocos y se reusan si se vuelve a suscribir
+        List<Subscription> subs = listFor(sub.topic, false);
+        if (subs != null && subs.remove(sub)) {
+            routes.clear();
+        }
+    }
+
+    public synchronized void clear() {
+        root.levels = new String[0];
+        root.children = new Node[0];
+        root.plus = null;
+        root.exact.clear();
+        root.rest.clear();
+        routes.clear();
+    }
+
+    public boolean hasListeners(String topic) {
+        return route(topic).length > 0;
+    }
+
+    // Devuelve false si nadie escuchaba ese topic
+    @SuppressWarnings("unchecked")
+    public boolean dispatch(String topic, byte[] payload) {
+        Subscription[] subs = route(topic);
+        if (subs.length == 0) {
+            return false;
+        }
+
+        // Cada decoder distinto corre una sola vez por mensaje
+        Decoder<?> lastDecoder = null;
+        Object lastDecoded = null;
+
+        for (Subscription sub : subs) {
+            Object decoded;
+            if (sub.decoder == lastDecoder) {
+                decoded = lastDecoded;
+            } else {
+                decoded = sub.decoder.decode(payload);
+                lastDecoder = sub.decoder;
+                lastDecoded = decoded;
+            }
+
+            final Listener<Object> listener = (Listener<Object>) sub.listener;
+            if (sub.executor == DIRECT) {
+                listener.onMessage(topic, decoded);
+            } else {
+                final Object message = decoded;
+                sub.executor.execute(() -> listener.onMessage(topic, message));
+            }
+        }
+        return true;
+    }
+
+    // ============================
+    //   TRIE
+    // ============================
+
+    private Subscription[] route(String topic) {
+        Subscription[] cached = routes.get(topic);
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (this) {
+            List<Subscription> found = new ArrayList<>();
+            // Por spec, los topics "$..." no matchean comodines en el primer nivel
+            collect(root, topic, 0, !topic.startsWith("$"), found);
+            Subscription[] resolved = found.isEmpty() ? NO_ROUTE : found.toArray(NO_ROUTE);
+            if (routes.size() >= MAX_ROUTES) {
+                routes.clear();
+            }
+            routes.put(topic, resolved);
+            return resolved;
+        }
+    }
+
+    // start = dónde empieza el nivel actual; > length() si ya no quedan niveles
+    private static void collect(Node node, String topic, int start, boolean wildcards,
+                                List<Subscription> out) {
+        if (wildcards) {
+            // "a/#" también vale para "a"
+            out.addAll(node.rest);
+        }
+        if (start > topic.length()) {
+            out.addAll(node.exact);
+            return;
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        int len = end - start;
+
+        String[] levels = node.levels;
+        Node[] children = node.children;
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].length() == len && topic.regionMatches(start, levels[i], 0, len)) {
+                collect(children[i], topic, end + 1, true, out);
+            }
+        }
+        if (wildcards && node.plus != null) {
+            collect(node.plus, topic, end + 1, true, out);
+        }
+    }
+
+    // Lista de subscriptions donde termina el filtro (exact o rest)
+    private List<Subscription> listFor(String filter, boolean create) {
+        Node node = root;
+        String[] levels = filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#") && i == levels.length - 1) {
+                return node.rest;
+            }
+            Node next;
+            if (level.equals("+")) {
+                if (node.plus == null && create) {
+                    node.plus = new Node();
+                }
+                next = node.plus;
+            } else {
+                next = node.child(level, create);
+            }
+            if (next == null) {
+                return null;
+            }
+            node = next;
+        }
+        return node.exact;
+    }
+}
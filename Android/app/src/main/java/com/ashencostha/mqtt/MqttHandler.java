@@ -1,18 +1,34 @@
 package com.ashencostha.mqtt;
 
 import android.content.Context;
-import android.content.Intent;
+import android.content.SharedPreferences;
 import android.util.Log;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
-public class MqttHandler implements MqttCallback {
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MqttHandler implements MqttCallback, DeviceRegistry.Connection {
 
     // Estos ya no los usás porque ahora configurás todo desde ConfigMQTT,
     // pero los dejo por si algo los referencia en otro lado.
@@ -26,82 +42,398 @@ public class MqttHandler implements MqttCallback {
     public static final String TOPIC_TEMPO  = "/v1.6/devices/simulator/tempo";
     public static final String TOPIC_EDIT   = "/v1.6/devices/simulator/edit";
 
-    public static final String ACTION_DATA_RECEIVE   = "com.example.intentservice.intent.action.DATA_RECEIVE";
-    public static final String ACTION_CONNECTION_LOST = "com.example.intentservice.intent.action.CONNECTION_LOST";
+    public interface ConnectionListener {
+        void onConnectionLost(Throwable cause);
+
+        // reconnect = true si no es la primera conexión
+        default void onConnected(boolean reconnect) {}
+    }
+
+    // Log por mensaje (entrante y saliente) sólo si se pide con
+    //   adb shell setprop log.tag.MqttHandler VERBOSE
+    // y se reinicia la app. Apagado no arma ningún String por mensaje.
+    private static final boolean LOG_MESSAGES = Log.isLoggable("MqttHandler", Log.VERBOSE);
+
+    // --- Reconexión con backoff exponencial + jitter ---
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS  = 30_000;
 
-    private MqttClient client;
+    // --- Buffer de publicaciones sin conexión ---
+    private static final int OUTBOX_CAPACITY = 64;
+    // Espera antes de reintentar un publish que Paho rechazó (ej: ventana llena)
+    private static final long FLUSH_RETRY_MS = 250;
+
+    // --- Sesión persistente ---
+    private static final String PERSISTENCE_DIR     = "mqtt";
+    private static final String SESSION_PREFS_KEY   = "MqttSession";
+    private static final String SESSION_TOPICS_KEY  = "Topics:";
+
+    // Listener y su executor van juntos: se cambian de una vez (volatile) y
+    // se leen una sola vez, así nunca se ve uno nuevo con el executor viejo
+    private static final class ConnectionTarget {
+        final Executor executor;
+        final ConnectionListener listener;
+
+        ConnectionTarget(Executor executor, ConnectionListener listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
+    private static final class OutboundMessage {
+        final String topic;
+        final byte[] payload;
+
+        OutboundMessage(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    // Un único cliente: se reutiliza en cada reconexión
+    private MqttAsyncClient client;
+    private MqttConnectOptions options;
     private final Context mContext;
 
-    public MqttHandler(Context mContext){
+    // Los mensajes entrantes van directo a los listeners registrados acá
+    private final MessageDispatcher dispatcher;
+
+    private volatile ConnectionTarget connectionTarget;
+
+    // Topics a los que queremos estar suscriptos. Se (re)suscriben apenas
+    // completa el token de connect, así nadie tiene que esperar con sleep.
+    private final Set<String> subscriptions = new LinkedHashSet<>();
+
+    // Sesión persistente (cleanSession = false + persistencia en disco):
+    // el broker guarda las suscripciones y lo que llegue mientras no estamos,
+    // y Paho guarda en archivos los QoS 1/2 en vuelo, así sobreviven a que
+    // maten el proceso. Al retomar la sesión sólo se suscribe lo que falte.
+    private boolean durableSession = true;
+    private boolean clientDurable;
+
+    // Todo publish pasa por acá: si no hay conexión queda esperando y se
+    // reenvía en el mismo orden al reconectar. Si se llena, se pierde el más viejo.
+    private final ArrayDeque<OutboundMessage> outbox = new ArrayDeque<>();
+
+    private final Random jitter = new Random();
+    private ScheduledExecutorService reconnectScheduler;
+    private ScheduledFuture<?> pendingReconnect;
+    private ScheduledFuture<?> pendingFlush;
+    private int reconnectAttempt = 0;
+    private boolean connecting = false;
+    private boolean connectedOnce = false;
+    private boolean closing = false;
+
+    public MqttHandler(Context mContext, MessageDispatcher dispatcher){
         this.mContext = mContext;
+        this.dispatcher = dispatcher;
     }
 
-    public void connect(String brokerUrl, String clientId, String username, String password) {
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    // null para sacarlo
+    public void setConnectionListener(Executor executor, ConnectionListener listener) {
+        connectionTarget = listener != null ? new ConnectionTarget(executor, listener) : null;
+    }
+
+    // Se aplica en el próximo connect() que cree el cliente
+    public synchronized void setDurableSession(boolean durable) {
+        this.durableSession = durable;
+    }
+
+    // No bloquea: devuelve enseguida y el resultado llega por el listener.
+    // Si ya hay un cliente para el mismo broker y clientId, se reutiliza.
+    public synchronized void connect(String brokerUrl, String clientId, String username, String password) {
+        closing = false;
+
+        options = new MqttConnectOptions();
+        options.setCleanSession(!durableSession);
+        // Que entre el buffer entero en vuelo: si no, al reconectar Paho
+        // rechaza todo lo que pase de 10 (el default)
+        options.setMaxInflight(OUTBOX_CAPACITY);
+        options.setUserName(username);
+        options.setPassword(password.toCharArray());
+
         try {
-            MqttConnectOptions options = new MqttConnectOptions();
-            options.setCleanSession(true);
-            options.setUserName(username);
-            options.setPassword(password.toCharArray());
+            if (client != null
+                    && !(client.getServerURI().equals(brokerUrl) && client.getClientId().equals(clientId)
+                         && clientDurable == durableSession)) {
+                closeClient();
+            }
+            if (client == null) {
+                // Paho separa los archivos por clientId + broker dentro de la carpeta
+                MqttClientPersistence persistence = durableSession
+                        ? new MqttDefaultFilePersistence(
+                                new File(mContext.getFilesDir(), PERSISTENCE_DIR).getAbsolutePath())
+                        : new MemoryPersistence();
 
-            MemoryPersistence persistence = new MemoryPersistence();
+                client = new MqttAsyncClient(brokerUrl, clientId, persistence);
+                clientDurable = durableSession;
+                client.setCallback(this);       // Primero el callback
+            }
+        } catch (MqttException e) {
+            Log.d("MqttHandler", "Error al crear el cliente: " + e.getMessage(), e);
+            return;
+        }
 
-            client = new MqttClient(brokerUrl, clientId, persistence);
-            client.setCallback(this);       // Primero el callback
-            client.connect(options);        // Luego conectamos
+        attemptConnect();
+    }
 
-            Log.d("MqttHandler", "Conectado a broker: " + brokerUrl + " con clientId=" + clientId);
+    private synchronized void attemptConnect() {
+        if (closing || client == null || connecting || client.isConnected()) {
+            return;
+        }
+        connecting = true;
+
+        final MqttAsyncClient target = client;
+        try {
+            target.connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    boolean reconnect;
+                    synchronized (MqttHandler.this) {
+                        connecting = false;
+                        reconnectAttempt = 0;
+                        reconnect = connectedOnce;
+                        connectedOnce = true;
+                    }
+                    TraceBuffer.APP.record(TraceBuffer.CONNECT, reconnect ? 1 : 0, 0);
+                    boolean sessionPresent = asyncActionToken.getSessionPresent();
+                    Log.d("MqttHandler", "Conectado a broker: " + target.getServerURI()
+                            + " con clientId=" + target.getClientId()
+                            + (sessionPresent ? " (sesión retomada)" : ""));
+                    if (!sessionPresent) {
+                        // Sesión nueva: el broker no tiene ninguna suscripción nuestra
+                        clearSessionTopics(target);
+                    }
+                    subscribePending(target);
+                    flushOutbox();
+                    notifyConnected(reconnect);
+                }
 
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    synchronized (MqttHandler.this) {
+                        connecting = false;
+                    }
+                    Log.d("MqttHandler", "Error al conectar: " + exception.getMessage(), exception);
+                    scheduleReconnect();
+                }
+            });
         } catch (MqttException e) {
+            connecting = false;
             Log.d("MqttHandler", "Error al conectar: " + e.getMessage(), e);
+            scheduleReconnect();
         }
     }
 
-    public void disconnect() {
+    // Espera min(MAX, BASE * 2^intento), con jitter entre la mitad y el total
+    // para que varios clientes no reintenten todos juntos.
+    private synchronized void scheduleReconnect() {
+        if (closing || (pendingReconnect != null && !pendingReconnect.isDone())) {
+            return;
+        }
+
+        long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(reconnectAttempt, 16));
+        long delay = ceiling / 2 + (long) (jitter.nextDouble() * (ceiling / 2));
+        reconnectAttempt++;
+        TraceBuffer.APP.record(TraceBuffer.RECONNECT_WAIT, reconnectAttempt, (int) delay);
+
+        Log.d("MqttHandler", "Reintento " + reconnectAttempt + " en " + delay + " ms");
+        pendingReconnect = scheduler().schedule(this::attemptConnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Reintento del flush en el mismo hilo que las reconexiones
+    private synchronized void scheduleFlush() {
+        if (closing || (pendingFlush != null && !pendingFlush.isDone())) {
+            return;
+        }
+        pendingFlush = scheduler().schedule(this::flushOutbox, FLUSH_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private ScheduledExecutorService scheduler() {
+        if (reconnectScheduler == null || reconnectScheduler.isShutdown()) {
+            reconnectScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        return reconnectScheduler;
+    }
+
+    public boolean isConnected() {
+        return client != null && client.isConnected();
+    }
+
+    public synchronized int pendingPublishes() {
+        return outbox.size();
+    }
+
+    // Corta la conexión y frena los reintentos. Lo que quedó en el buffer se descarta.
+    public synchronized void disconnect() {
+        closing = true;
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel(false);
+            pendingReconnect = null;
+        }
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (reconnectScheduler != null) {
+            reconnectScheduler.shutdownNow();
+            reconnectScheduler = null;
+        }
+        outbox.clear();
+
+        if (client == null) {
+            return;
+        }
+        final MqttAsyncClient target = client;
+        client = null;
         try {
-            if (client != null && client.isConnected()) {
-                client.disconnect();
-                Log.d("MqttHandler", "Desconectado de MQTT");
+            if (target.isConnected()) {
+                target.disconnect(null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken) {
+                        Log.d("MqttHandler", "Desconectado de MQTT");
+                        closeQuietly(target);
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                        Log.e("MqttHandler", "Error al desconectar", exception);
+                        closeQuietly(target);
+                    }
+                });
+            } else {
+                closeQuietly(target);
             }
         } catch (MqttException e) {
             e.printStackTrace();
+            closeQuietly(target);
         }
     }
 
-    public void publish(String topic, String message) {
+    private void closeClient() {
+        MqttAsyncClient old = client;
+        client = null;
+        connecting = false;
         try {
-            if (client == null || !client.isConnected()) {
-                Log.w("MqttHandler", "publish: cliente no conectado");
-                return;
+            if (old.isConnected()) {
+                old.disconnectForcibly(0, 1000);
             }
-            MqttMessage mqttMessage = new MqttMessage(message.getBytes());
-            mqttMessage.setQos(2);
-            client.publish(topic, mqttMessage);
-            Log.d("MqttHandler", "Publicado en " + topic + ": " + message);
         } catch (MqttException e) {
             e.printStackTrace();
         }
+        closeQuietly(old);
     }
 
-    public void subscribe(String topic) {
+    private static void closeQuietly(MqttAsyncClient c) {
         try {
+            c.close();
+        } catch (MqttException e) {
+            Log.w("MqttHandler", "close: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void publish(String topic, String message) {
+        publish(topic, message.getBytes());
+    }
+
+    public void publish(String topic, byte[] payload) {
+        synchronized (this) {
+            if (outbox.size() >= OUTBOX_CAPACITY) {
+                OutboundMessage dropped = outbox.pollFirst();
+                Log.w("MqttHandler", "publish: buffer lleno, se descarta mensaje en " + dropped.topic);
+            }
+            outbox.addLast(new OutboundMessage(topic, payload));
             if (client == null || !client.isConnected()) {
-                Log.w("MqttHandler", "subscribe: cliente no conectado");
+                Log.w("MqttHandler", "publish: cliente no conectado, queda en buffer ("
+                        + outbox.size() + ")");
                 return;
             }
-            client.subscribe(topic);
-            Log.d("MqttHandler", "Suscripto a topic: " + topic);
-        } catch (MqttException e) {
-            e.printStackTrace();
         }
+        flushOutbox();
+    }
+
+    // Vacía el buffer en orden. Si Paho rechaza uno (conexión caída a la
+    // mitad, ventana en vuelo llena), ése y lo que sigue quedan al frente y
+    // se reintenta en FLUSH_RETRY_MS; si no hay conexión, al reconectar.
+    private synchronized void flushOutbox() {
+        while (!outbox.isEmpty()) {
+            if (client == null || !client.isConnected()) {
+                return;
+            }
+            OutboundMessage msg = outbox.pollFirst();
+            try {
+                publishNow(msg);
+            } catch (MqttException e) {
+                Log.w("MqttHandler", "publish: fallo, se reintenta: " + e.getMessage());
+                outbox.addFirst(msg);
+                scheduleFlush();
+                return;
+            }
+        }
+    }
+
+    // Un publish aceptado que después falla vuelve al frente del buffer. Si
+    // el buffer se llenó mientras tanto, es el más viejo y se pierde.
+    private synchronized void requeue(OutboundMessage msg) {
+        if (closing || outbox.size() >= OUTBOX_CAPACITY) {
+            Log.w("MqttHandler", "publish: se descarta mensaje en " + msg.topic);
+            return;
+        }
+        outbox.addFirst(msg);
+        scheduleFlush();
     }
 
+    private void publishNow(OutboundMessage msg) throws MqttException {
+        MqttMessage mqttMessage = new MqttMessage(msg.payload);
+        mqttMessage.setQos(2);
+        TraceBuffer.APP.record(TraceBuffer.PUBLISH, TraceBuffer.APP.topicId(msg.topic), msg.payload.length);
+        client.publish(msg.topic, mqttMessage, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                if (LOG_MESSAGES) {
+                    Log.v("MqttHandler", "Publicado en " + msg.topic + " (" + msg.payload.length + " bytes)");
+                }
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                Log.e("MqttHandler", "Error al publicar en " + msg.topic + ", se reintenta", exception);
+                requeue(msg);
+            }
+        });
+    }
+
+    // Si todavía no estamos conectados, el topic queda anotado y se suscribe
+    // cuando termina el connect.
+    @Override
+    public void subscribe(String topic) {
+        synchronized (subscriptions) {
+            subscriptions.add(topic);
+        }
+        if (client == null || !client.isConnected()) {
+            Log.d("MqttHandler", "subscribe: pendiente hasta conectar (" + topic + ")");
+            return;
+        }
+        subscribeNow(topic);
+    }
+
+    @Override
     public void unsubscribe(final String topic) {
+        synchronized (subscriptions) {
+            subscriptions.remove(topic);
+        }
         try {
             if (client == null || !client.isConnected()) {
                 Log.w("MqttHandler", "unsubscribe: cliente no conectado");
                 return;
             }
             client.unsubscribe(topic);
+            removeSessionTopic(client, topic);
             Log.d("MqttHandler", "Unsubscribed from topic: " + topic);
         } catch (MqttException e) {
             e.printStackTrace();
@@ -109,26 +441,119 @@ public class MqttHandler implements MqttCallback {
         }
     }
 
+    // Con la sesión retomada, lo que ya estaba suscripto no se vuelve a pedir
+    private void subscribePending(MqttAsyncClient target) {
+        String[] topics;
+        synchronized (subscriptions) {
+            topics = subscriptions.toArray(new String[0]);
+        }
+        Set<String> inSession = sessionTopics(target);
+        for (String topic : topics) {
+            if (!inSession.contains(topic)) {
+                subscribeNow(topic);
+            }
+        }
+    }
+
+    // ============================
+    //   SUSCRIPCIONES DE LA SESIÓN
+    // ============================
+    // Qué topics ya tiene el broker en nuestra sesión persistente, por
+    // broker + clientId. Se guarda en SharedPreferences para que sirva
+    // también después de reiniciar la app.
+
+    private static String sessionKey(MqttAsyncClient target) {
+        return SESSION_TOPICS_KEY + target.getServerURI() + "|" + target.getClientId();
+    }
+
+    private SharedPreferences sessionPrefs() {
+        return mContext.getSharedPreferences(SESSION_PREFS_KEY, Context.MODE_PRIVATE);
+    }
+
+    private Set<String> sessionTopics(MqttAsyncClient target) {
+        if (!clientDurable) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(sessionPrefs().getStringSet(sessionKey(target), new HashSet<>()));
+    }
+
+    private synchronized void addSessionTopic(MqttAsyncClient target, String topic) {
+        if (!clientDurable) {
+            return;
+        }
+        Set<String> topics = sessionTopics(target);
+        if (topics.add(topic)) {
+            sessionPrefs().edit().putStringSet(sessionKey(target), topics).apply();
+        }
+    }
+
+    private synchronized void removeSessionTopic(MqttAsyncClient target, String topic) {
+        Set<String> topics = sessionTopics(target);
+        if (topics.remove(topic)) {
+            sessionPrefs().edit().putStringSet(sessionKey(target), topics).apply();
+        }
+    }
+
+    private void clearSessionTopics(MqttAsyncClient target) {
+        sessionPrefs().edit().remove(sessionKey(target)).apply();
+    }
+
+    private void subscribeNow(String topic) {
+        MqttAsyncClient target = client;
+        if (target == null) {
+            return;
+        }
+        try {
+            target.subscribe(topic, 1, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    Log.d("MqttHandler", "Suscripto a topic: " + topic);
+                    addSessionTopic(target, topic);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    Log.e("MqttHandler", "Error al suscribir a " + topic, exception);
+                }
+            });
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void connectionLost(Throwable cause) {
+        TraceBuffer.APP.record(TraceBuffer.CONNECTION_LOST);
         Log.d("MqttHandler","Conexión perdida: " + (cause != null ? cause.getMessage() : "desconocida"));
 
-        Intent i = new Intent(ACTION_CONNECTION_LOST);
-        mContext.sendBroadcast(i);
+        ConnectionTarget target = connectionTarget;
+        if (target != null) {
+            target.executor.execute(() -> target.listener.onConnectionLost(cause));
+        }
+        scheduleReconnect();
+    }
+
+    private void notifyConnected(boolean reconnect) {
+        ConnectionTarget target = connectionTarget;
+        if (target != null) {
+            target.executor.execute(() -> target.listener.onConnected(reconnect));
+        }
     }
 
     @Override
     public void messageArrived(String topic, MqttMessage message) {
-        // 🔴 IMPORTANTE: ya NO parseamos JSON, usamos el payload tal cual
-        String msgJson = new String(message.getPayload());
-        Log.d("MqttHandler", "Mensaje recibido. Topic=" + topic + " payload=" + msgJson);
-
-        // Enviar ambos: topic + msgJson, porque MainActivity usa los dos
-        Intent i = new Intent(ACTION_DATA_RECEIVE);
-        i.putExtra("topic", topic);
-        i.putExtra("msgJson", msgJson);
+        // 🔴 IMPORTANTE: ya NO parseamos JSON, usamos el payload tal cual.
+        // Sin Intent ni Binder: el dispatcher lo entrega a cada listener,
+        // que parsea los bytes directamente (getPayload() no copia).
+        byte[] payload = message.getPayload();
+        TraceBuffer.APP.record(TraceBuffer.RECEIVE, TraceBuffer.APP.topicId(topic), payload.length);
+        if (LOG_MESSAGES) {
+            Log.v("MqttHandler", "Mensaje recibido. Topic=" + topic + " (" + payload.length + " bytes)");
+        }
 
-        mContext.sendBroadcast(i);
+        if (!dispatcher.dispatch(topic, payload) && LOG_MESSAGES) {
+            Log.v("MqttHandler", "Mensaje sin listener en topic: " + topic);
+        }
     }
 
     @Override
@@ -1,59 +1,261 @@
 package com.ashencostha.mqtt;
 
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import java.lang.reflect.Type;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SavedSongsActivity extends AppCompatActivity {
 
     private ListView songsListView;
+    private EditText searchSongInput;
     private Button loadSongButton, deleteSongButton, backSongButton;;
+    private Button exportSongsButton, importSongsButton;
+    private TextView archiveStatusText;
 
-    private ArrayList<Song> songList;
-    private ArrayAdapter<Song> songAdapter;
-    private Song selectedSong = null;
+    private SongStore store;
+    private SongListAdapter songAdapter;
+    private SongInfo selectedSong = null;
 
+    // Formato viejo: toda la biblioteca como JSON en SharedPreferences.
+    // Sólo se lee una vez para pasarla al SongStore.
     public static final String SONGS_PREFS_KEY = "SavedSongs";
     public static final String SONGS_LIST_KEY = "SongListJSON";
 
+    private static final String SONGS_DIR = "songs";
+
+    // Se devuelve sólo el id de la canción elegida; MainActivity la busca en
+    // el SongStore compartido (que tiene las últimas decodificadas)
+    public static final String EXTRA_SONG_ID = "songId";
+
+    private static final int EXPORT_REQUEST_CODE = 1;
+    private static final int IMPORT_REQUEST_CODE = 2;
+
+    // Respuesta de songStore(), siempre en el hilo principal
+    public interface StoreCallback {
+        void onStore(SongStore store);
+
+        void onError(IOException error);
+    }
+
+    private static SongStore songStore;
+
+    // Un solo hilo escritor para toda la biblioteca, mientras viva la app.
+    // También es el que la abre: leer el banco y migrar no van en la UI.
+    private static final ExecutorService songWriter = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Exportar/importar puede tardar con bibliotecas grandes: va en su propio
+    // hilo, y de a uno (no se pisan si se toca dos veces)
+    private static final ExecutorService archiveExecutor = Executors.newSingleThreadExecutor();
+    private static final ArchiveJob archive = new ArchiveJob();
+
+    // Estado del export/import en curso. Vive fuera de la Activity, que se
+    // recrea al rotar: el hilo del backup sólo le habla a esto (por el hilo
+    // principal) y la pantalla visible se anota en onStart() para mostrarlo.
+    // Todo en el hilo principal.
+    private static final class ArchiveJob {
+        boolean running;
+        String status = "";
+        String result;      // mensaje final que todavía no se mostró
+        boolean refresh;    // el import agregó canciones
+        SavedSongsActivity observer;
+
+        void start(String text) {
+            running = true;
+            status = text;
+            result = null;
+            refresh = false;
+            changed();
+        }
+
+        void progress(String text) {
+            if (running) {
+                status = text;
+                changed();
+            }
+        }
+
+        void finish(String message, boolean added) {
+            running = false;
+            status = message;
+            result = message;
+            refresh |= added;
+            changed();
+        }
+
+        void attach(SavedSongsActivity activity) {
+            observer = activity;
+            changed();
+        }
+
+        void detach(SavedSongsActivity activity) {
+            if (observer == activity) {
+                observer = null;
+            }
+        }
+
+        private void changed() {
+            if (observer != null) {
+                observer.showArchiveState();
+            }
+        }
+    }
+
+    // Store compartido por las dos pantallas. Si ya está abierto, 'callback'
+    // se llama enseguida; si no, se abre (y la primera vez migra el JSON
+    // viejo) en el hilo escritor y 'callback' llega después por el principal.
+    public static void songStore(Context context, StoreCallback callback) {
+        SongStore opened = openedStore();
+        if (opened != null) {
+            callback.onStore(opened);
+            return;
+        }
+        Context app = context.getApplicationContext();
+        songWriter.execute(() -> {
+            try {
+                SongStore store = openStore(app);
+                mainHandler.post(() -> callback.onStore(store));
+            } catch (IOException e) {
+                e.printStackTrace();
+                mainHandler.post(() -> callback.onError(e));
+            }
+        });
+    }
+
+    private static synchronized SongStore openedStore() {
+        return songStore;
+    }
+
+    // En el hilo escritor: los pedidos que llegan mientras abre quedan en
+    // cola detrás y encuentran el store ya abierto
+    private static synchronized SongStore openStore(Context app) throws IOException {
+        if (songStore == null) {
+            SongStore store = new SongStore(new File(app.getFilesDir(), SONGS_DIR), songWriter);
+            store.open();
+            // Si el disco falla, las canciones siguen en memoria y se reintenta
+            // sola: se avisa una vez, en la pantalla que esté abierta
+            store.setFailureListener(mainHandler::post, (error, attempt) -> {
+                if (attempt == 1) {
+                    Toast.makeText(app, "No se pudieron guardar las canciones, se reintenta",
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+            migrateLegacySongs(app, store);
+            songStore = store;
+        }
+        return songStore;
+    }
+
+    private static void migrateLegacySongs(Context context, SongStore store) throws IOException {
+        SharedPreferences prefs = context.getSharedPreferences(SONGS_PREFS_KEY, MODE_PRIVATE);
+        String json = prefs.getString(SONGS_LIST_KEY, null);
+        if (json == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit().remove(SONGS_LIST_KEY);
+        try {
+            store.importFrom(new StringReader(json));
+        } catch (IOException | RuntimeException e) {
+            // JSON roto: quedan las que se pudieron leer y el original se
+            // guarda aparte en vez de reintentarlo (y duplicarlas) cada vez
+            e.printStackTrace();
+            editor.putString(SONGS_LIST_KEY + "_error", json);
+        }
+        // commit() y no apply(): si se corta acá, no queremos importarlas dos veces
+        editor.commit();
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_saved_songs);
 
         songsListView = findViewById(R.id.songsListView);
+        searchSongInput = findViewById(R.id.searchSongInput);
         loadSongButton = findViewById(R.id.loadSongButton);
         deleteSongButton = findViewById(R.id.deleteSongButton);
         backSongButton = findViewById(R.id.backSongButton);
+        exportSongsButton = findViewById(R.id.exportSongsButton);
+        importSongsButton = findViewById(R.id.importSongsButton);
+        archiveStatusText = findViewById(R.id.archiveStatusText);
 
-        loadSongsFromPrefs();
-
-        songAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_single_choice, songList);
-        songsListView.setAdapter(songAdapter);
         songsListView.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
 
+        // Hasta que el store esté abierto no hay nada que listar ni tocar
+        setStoreControlsEnabled(false);
+        songStore(this, new StoreCallback() {
+            @Override
+            public void onStore(SongStore opened) {
+                if (!isDestroyed()) {
+                    showSongs(opened);
+                }
+            }
+
+            @Override
+            public void onError(IOException error) {
+                if (!isDestroyed()) {
+                    Toast.makeText(SavedSongsActivity.this,
+                            "No se pudieron leer las canciones", Toast.LENGTH_SHORT).show();
+                    finish();
+                }
+            }
+        });
+
         // --- Listeners ---
 
+        // Busca con cada tecla en el índice de nombres del store
+        searchSongInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) { }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (songAdapter == null) {
+                    return;
+                }
+                songAdapter.setQuery(s.toString());
+                selectedSong = null;
+                songsListView.clearChoices();
+            }
+        });
+
         songsListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                selectedSong = songList.get(position);
+                selectedSong = songAdapter.getItem(position);
             }
         });
 
@@ -69,7 +271,7 @@ public class SavedSongsActivity extends AppCompatActivity {
             public void onClick(View v) {
                 if (selectedSong != null) {
                     Intent resultIntent = new Intent();
-                    resultIntent.putExtra("loadedSong", selectedSong);
+                    resultIntent.putExtra(EXTRA_SONG_ID, selectedSong.getId());
                     setResult(RESULT_OK, resultIntent);
                     finish();
                 } else {
@@ -78,6 +280,23 @@ public class SavedSongsActivity extends AppCompatActivity {
             }
         });
 
+        // El usuario elige dónde guardar / qué abrir; sigue en onActivityResult
+        exportSongsButton.setOnClickListener(v -> {
+            String date = new SimpleDateFormat("yyyyMMdd_HHmm", Locale.US).format(new Date());
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                    .addCategory(Intent.CATEGORY_OPENABLE)
+                    .setType(SongArchive.MIME_TYPE)
+                    .putExtra(Intent.EXTRA_TITLE, "canciones_" + date + SongArchive.EXTENSION);
+            startActivityForResult(intent, EXPORT_REQUEST_CODE);
+        });
+
+        importSongsButton.setOnClickListener(v -> {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                    .addCategory(Intent.CATEGORY_OPENABLE)
+                    .setType("*/*");
+            startActivityForResult(intent, IMPORT_REQUEST_CODE);
+        });
+
         deleteSongButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -90,25 +309,127 @@ public class SavedSongsActivity extends AppCompatActivity {
         });
     }
 
-    private void loadSongsFromPrefs() {
-        SharedPreferences prefs = getSharedPreferences(SONGS_PREFS_KEY, MODE_PRIVATE);
-        String json = prefs.getString(SONGS_LIST_KEY, null);
-        Gson gson = new Gson();
-        Type type = new TypeToken<ArrayList<Song>>() {}.getType();
-        songList = gson.fromJson(json, type);
+    // Sólo nombres, de a páginas: las matrices se leen al cargar una canción
+    private void showSongs(SongStore opened) {
+        store = opened;
+        songAdapter = new SongListAdapter(this, store);
+        songsListView.setAdapter(songAdapter);
+        // Lo que se llegó a escribir en la búsqueda mientras abría
+        String query = searchSongInput.getText().toString();
+        if (!query.isEmpty()) {
+            songAdapter.setQuery(query);
+        }
+        setStoreControlsEnabled(true);
+    }
 
-        if (songList == null) {
-            songList = new ArrayList<>();
+    private void setStoreControlsEnabled(boolean enabled) {
+        loadSongButton.setEnabled(enabled);
+        deleteSongButton.setEnabled(enabled);
+        exportSongsButton.setEnabled(enabled && !archive.running);
+        importSongsButton.setEnabled(enabled && !archive.running);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        archive.attach(this);
+    }
+
+    @Override
+    protected void onStop() {
+        archive.detach(this);
+        super.onStop();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        if (requestCode == EXPORT_REQUEST_CODE) {
+            exportLibrary(data.getData());
+        } else if (requestCode == IMPORT_REQUEST_CODE) {
+            importLibrary(data.getData());
+        }
+    }
+
+    // ============================
+    //   BACKUP (SongArchive)
+    // ============================
+
+    // Los trabajos son estáticos a propósito: no se quedan con la Activity
+    // (que puede rotar o cerrarse mientras tanto), sólo con 'archive'
+    private void exportLibrary(Uri uri) {
+        ContentResolver resolver = getApplicationContext().getContentResolver();
+        SongStore target = store;
+        archive.start("Exportando...");
+        archiveExecutor.execute(() -> exportTo(resolver, uri, target));
+    }
+
+    private void importLibrary(Uri uri) {
+        ContentResolver resolver = getApplicationContext().getContentResolver();
+        SongStore target = store;
+        archive.start("Importando...");
+        archiveExecutor.execute(() -> importFrom(resolver, uri, target));
+    }
+
+    private static void exportTo(ContentResolver resolver, Uri uri, SongStore store) {
+        String message;
+        try {
+            OutputStream out = resolver.openOutputStream(uri);
+            if (out == null) {
+                throw new IOException("No se pudo abrir " + uri);
+            }
+            int count = SongArchive.write(store, out, (done, total) ->
+                    mainHandler.post(() -> archive.progress("Exportando " + done + " de " + total)));
+            message = "Se exportaron " + count + " canciones";
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            message = "No se pudo exportar la biblioteca";
+        }
+        String result = message;
+        mainHandler.post(() -> archive.finish(result, false));
+    }
+
+    private static void importFrom(ContentResolver resolver, Uri uri, SongStore store) {
+        String message;
+        try {
+            InputStream in = resolver.openInputStream(uri);
+            if (in == null) {
+                throw new IOException("No se pudo abrir " + uri);
+            }
+            int added = SongArchive.read(store, in, (done, total) ->
+                    mainHandler.post(() -> archive.progress("Importando... " + done + " leídas")));
+            message = "Se importaron " + added + " canciones nuevas";
+        } catch (IOException | RuntimeException e) {
+            // Lo que se llegó a leer queda importado
+            e.printStackTrace();
+            message = "No se pudo importar el archivo";
+        }
+        String result = message;
+        mainHandler.post(() -> archive.finish(result, true));
+    }
+
+    // Lo llama 'archive' cuando cambia y al anotarse esta pantalla. Si el
+    // trabajo terminó mientras no había ninguna, el aviso sale ahora.
+    private void showArchiveState() {
+        boolean ready = store != null;
+        exportSongsButton.setEnabled(ready && !archive.running);
+        importSongsButton.setEnabled(ready && !archive.running);
+        archiveStatusText.setText(archive.status);
+        if (archive.result != null) {
+            if (archive.refresh && songAdapter != null) {
+                songAdapter.refresh();
+            }
+            Toast.makeText(this, archive.result, Toast.LENGTH_SHORT).show();
+            archive.result = null;
+            archive.refresh = false;
         }
     }
 
-    private void saveSongsToPrefs() {
-        SharedPreferences prefs = getSharedPreferences(SONGS_PREFS_KEY, MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        Gson gson = new Gson();
-        String json = gson.toJson(songList);
-        editor.putString(SONGS_LIST_KEY, json);
-        editor.apply();
+    private void deleteSong(SongInfo info) {
+        store.delete(info.getId());
     }
 
     private void showDeleteConfirmationDialog() {
@@ -117,9 +438,8 @@ public class SavedSongsActivity extends AppCompatActivity {
                 .setMessage("¿Está seguro de que desea borrar '" + selectedSong.getName() + "'? Esta acción no se puede deshacer.")
                 .setPositiveButton("Borrar", new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
-                        songList.remove(selectedSong);
-                        songAdapter.notifyDataSetChanged();
-                        saveSongsToPrefs();
+                        deleteSong(selectedSong);
+                        songAdapter.refresh();
                         selectedSong = null;
                         songsListView.clearChoices();
                         Toast.makeText(SavedSongsActivity.this, "Canción borrada", Toast.LENGTH_SHORT).show();
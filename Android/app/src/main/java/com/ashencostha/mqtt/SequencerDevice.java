@@ -0,0 +1,103 @@
+package com.ashencostha.mqtt;
+
+// Un secuenciador ESP32 y sus topics.
+// El principal (id vacío) usa los de siempre, "/simulator/status", etc.
+// Los demás tienen su propio espacio: "/simulator/<id>/status", etc.
+// ALL ("/simulator/all/...") lo escuchan todos: un solo publish llega a todos.
+// Cada equipo tiene además su formato de matriz en getcell/cellval: TEXT es
+// el legacy "v v v ..."; BINARY es el empaquetado de MatrixCodec.
+public final class SequencerDevice {
+
+    public static final String ROOT         = "/simulator";
+    public static final String BROADCAST_ID = "all";
+    private static final int   MAX_ID_LENGTH = 16;
+
+    public static final SequencerDevice MAIN = new SequencerDevice("");
+    public static final SequencerDevice ALL  = new SequencerDevice(BROADCAST_ID);
+
+    private final String id;
+    private final MatrixCodec.Format matrixFormat;
+
+    // Topics armados una sola vez, no en cada mensaje
+    public final String topicStatus;
+    public final String topicState;
+    public final String topicTempo;
+    public final String topicEdit;
+    public final String topicPlayRow;
+    public final String topicSendMatrix;
+    public final String topicReceiveMatrix;
+    public final String topicPing;
+    public final String topicPong;
+    public final String topicMatrixState;
+
+    public SequencerDevice(String id) {
+        this(id, MatrixCodec.Format.TEXT);
+    }
+
+    public SequencerDevice(String id, MatrixCodec.Format matrixFormat) {
+        this.id = id;
+        this.matrixFormat = matrixFormat;
+        String ns = id.isEmpty() ? ROOT : ROOT + "/" + id;
+        topicStatus        = ns + "/status";
+        topicState         = ns + "/state";
+        topicTempo         = ns + "/tempo";
+        topicEdit          = ns + "/edit";
+        topicPlayRow       = ns + "/playrow";
+        topicSendMatrix    = ns + "/getcell";
+        topicReceiveMatrix = ns + "/cellval";
+        topicPing          = ns + "/ping";
+        topicPong          = ns + "/pong";
+        topicMatrixState   = ns + "/matrix";
+    }
+
+    // Letras, números, '_' o '-'; "all" queda reservado para los broadcast
+    public static boolean isValidId(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_ID_LENGTH || id.equals(BROADCAST_ID)) {
+            return false;
+        }
+        for (int k = 0; k < id.length(); k++) {
+            char c = id.charAt(k);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public MatrixCodec.Format getMatrixFormat() {
+        return matrixFormat;
+    }
+
+    // Mismo equipo (mismos topics) con otro formato
+    public SequencerDevice withMatrixFormat(MatrixCodec.Format format) {
+        return format == matrixFormat ? this : new SequencerDevice(id, format);
+    }
+
+    public boolean isMain() {
+        return id.isEmpty();
+    }
+
+    public String getName() {
+        return isMain() ? "Principal" : id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SequencerDevice && ((SequencerDevice) o).id.equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,147 @@
+package com.ashencostha.mqtt;
+
+// El patrón del secuenciador: 16 filas x 4 columnas, guardado plano en un
+// byte[64] (celda = fila * COLS + columna). La columna 0 va de 0 a 15 y las
+// demás de 0 a 127 (MatrixCodec.maxValue), y no se puede guardar otra cosa.
+//
+// Cada parte que necesita enterarse de los cambios (la grilla, la sync con
+// el ESP, ...) se anota con addConsumer() y tiene su propio bitmap de celdas
+// cambiadas: 64 celdas entran justo en un long. drain() le devuelve lo que
+// cambió desde la última vez y lo limpia, sin recorrer ni comparar nada.
+//
+// No es thread-safe: se usa desde el hilo principal.
+public final class SequencerMatrix {
+
+    public static final int ROWS  = MatrixCodec.ROWS;
+    public static final int COLS  = MatrixCodec.COLS;
+    public static final int CELLS = ROWS * COLS;
+
+    public static final long ALL_CELLS = -1L;   // los 64 bits
+    // Para cambios que tienen que ver todos los consumidores
+    public static final int NO_CONSUMER = -1;
+
+    private static final int MAX_CONSUMERS = 4;
+
+    private final byte[] cells = new byte[CELLS];
+    private final long[] dirty = new long[MAX_CONSUMERS];
+    private int consumers = 0;
+
+    // Para decodificar payloads sin alocar cada vez
+    private final int[][] scratch = new int[ROWS][COLS];
+
+    public static boolean isValid(int col, int value) {
+        return value >= 0 && value <= MatrixCodec.maxValue(col);
+    }
+
+    public static int cell(int row, int col) {
+        return row * COLS + col;
+    }
+
+    public static int rowOf(int cell) {
+        return cell / COLS;
+    }
+
+    public static int colOf(int cell) {
+        return cell % COLS;
+    }
+
+    // Un consumidor nuevo arranca sin cambios pendientes: lee todo con get()
+    public int addConsumer() {
+        if (consumers == MAX_CONSUMERS) {
+            throw new IllegalStateException("Demasiados consumidores");
+        }
+        return consumers++;
+    }
+
+    public int get(int row, int col) {
+        return cells[cell(row, col)];
+    }
+
+    public boolean set(int row, int col, int value) {
+        return set(NO_CONSUMER, row, col, value);
+    }
+
+    // 'source' hizo el cambio y ya lo sabe: se marca para los demás.
+    // Devuelve true si el valor cambió.
+    public boolean set(int source, int row, int col, int value) {
+        if (!isValid(col, value)) {
+            throw new IllegalArgumentException("Valor fuera de rango en (" + row + ", " + col + "): " + value);
+        }
+        int cell = cell(row, col);
+        if (cells[cell] == value) {
+            return false;
+        }
+        cells[cell] = (byte) value;
+        mark(source, 1L << cell);
+        return true;
+    }
+
+    // Copia una matriz 16x4 entera, llevando cada valor a su rango. Sólo se
+    // marcan las celdas que de verdad cambiaron. Devuelve cuántas fueron.
+    public int copyFrom(int source, int[][] from) {
+        long changed = 0;
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                int value = Math.max(0, Math.min(from[i][j], MatrixCodec.maxValue(j)));
+                int cell = cell(i, j);
+                if (cells[cell] != value) {
+                    cells[cell] = (byte) value;
+                    changed |= 1L << cell;
+                }
+            }
+        }
+        mark(source, changed);
+        return Long.bitCount(changed);
+    }
+
+    // Payload de MatrixCodec (texto o binario) desde 'offset'. false si no se
+    // entiende, y en ese caso no cambia nada.
+    public boolean decode(int source, byte[] payload, int offset) {
+        if (!MatrixCodec.decode(payload, offset, scratch)) {
+            return false;
+        }
+        copyFrom(source, scratch);
+        return true;
+    }
+
+    public void copyTo(int[][] into) {
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                into[i][j] = cells[cell(i, j)];
+            }
+        }
+    }
+
+    // Copia nueva, para lo que todavía trabaja con int[][] (Song, SongStore)
+    public int[][] toArray() {
+        int[][] copy = new int[ROWS][COLS];
+        copyTo(copy);
+        return copy;
+    }
+
+    // ============================
+    //   CAMBIOS POR CONSUMIDOR
+    // ============================
+
+    // Bit 'celda' prendido = cambió desde el último drain() de este consumidor
+    public long drain(int consumer) {
+        long bits = dirty[consumer];
+        dirty[consumer] = 0;
+        return bits;
+    }
+
+    public boolean isDirty(int consumer) {
+        return dirty[consumer] != 0;
+    }
+
+    private void mark(int source, long bits) {
+        if (bits == 0) {
+            return;
+        }
+        for (int c = 0; c < consumers; c++) {
+            if (c != source) {
+                dirty[c] |= bits;
+            }
+        }
+    }
+}
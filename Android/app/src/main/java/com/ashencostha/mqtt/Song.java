@@ -3,6 +3,7 @@ package com.ashencostha.mqtt;
 import java.io.Serializable;
 
 public class Song implements Serializable {
+    private long id;          // 0 = todavía no está en el SongStore
     private String name;
     private int[][] matrix;
 
@@ -11,6 +12,14 @@ public class Song implements Serializable {
         this.matrix = matrix;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
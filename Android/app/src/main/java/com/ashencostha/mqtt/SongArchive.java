@@ -0,0 +1,54 @@
+package com.ashencostha.mqtt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Backup de la biblioteca para pasarla a otro teléfono: el array JSON de
+// SongJson comprimido con GZIP (".json.gz", se abre con cualquier
+// descompresor). Se escribe y se lee como stream sobre SongStore.exportTo()/
+// importFrom(), así que en memoria hay una canción a la vez sin importar el
+// tamaño de la biblioteca.
+public final class SongArchive {
+
+    public static final String MIME_TYPE = "application/gzip";
+    public static final String EXTENSION = ".json.gz";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private SongArchive() {}
+
+    // Devuelve cuántas canciones escribió. Cierra 'out'.
+    public static int write(SongStore store, OutputStream out, SongStore.Progress progress)
+            throws IOException {
+        Writer writer;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(out, BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        return store.exportTo(writer, progress);
+    }
+
+    // Devuelve cuántas canciones agregó: las que ya estaban con el mismo
+    // nombre y la misma matriz se saltean (y las matrices repetidas con otro
+    // nombre no ocupan lugar, ver SongStore). Cierra 'in'.
+    public static int read(SongStore store, InputStream in, SongStore.Progress progress)
+            throws IOException {
+        try (InputStream input = in;
+             Reader reader = new InputStreamReader(
+                     new GZIPInputStream(input, BUFFER_SIZE), StandardCharsets.UTF_8)) {
+            return store.importFrom(reader, true, progress);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.ashencostha.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Banco de matrices: un solo archivo con registros de tamaño fijo, mapeado
+// en memoria. La matriz de un slot está siempre en la misma posición
+// (HEADER_SIZE + slot * RECORD_SIZE), así que leer cualquier canción es
+// copiar 51 bytes y desempaquetarlos, sin parsear nada ni recorrer el archivo.
+//
+// Cabecera (32 bytes): int magic, int versión, int tamaño de registro,
+//                      int cantidad de slots, long próximo id de canción
+// Registro (64 bytes): long clave (0 = libre) y la matriz en el formato
+//                      binario de MatrixCodec; el resto es relleno.
+//
+// La clave es el hash del contenido (keyOf()): cada matriz distinta se
+// guarda una sola vez y las canciones la referencian por esa clave. Si dos
+// matrices distintas dan el mismo hash, la segunda usa la clave siguiente
+// libre (nextKey()). Al abrir se arma un índice clave -> slot leyendo sólo
+// las claves.
+//
+// La clave se escribe después de la matriz y se borra antes de reusar el
+// slot, así un slot con clave nunca tiene una matriz a medio escribir (una
+// vez que force() los bajó a disco).
+public class SongBank {
+
+    private static final int FILE_MAGIC = 0x53424E4B;   // "SBNK"
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 64;
+    private static final int MATRIX_OFFSET = 8;
+    private static final int INITIAL_SLOTS = 64;
+
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_SLOTS   = 12;
+    private static final int OFF_NEXT_ID = 16;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int slots;
+
+    // Slots ocupados y clave -> slot, armados al abrir
+    private final BitSet used = new BitSet();
+    private final Map<Long, Integer> index = new HashMap<>();
+
+    private final byte[] scratch = new byte[MatrixCodec.BINARY_SIZE];
+
+    public SongBank(File file) {
+        this.file = file;
+    }
+
+    // Hash FNV-1a de 64 bits de la matriz empaquetada, nunca 0
+    public static long keyOf(byte[] packed) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : packed) {
+            hash ^= (b & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    public static long keyOf(int[][] matrix) {
+        return keyOf(MatrixCodec.encodeBinary(matrix));
+    }
+
+    // Próxima clave a probar cuando 'key' la tiene otra matriz (nunca 0)
+    public static long nextKey(long key) {
+        return key + 1 != 0 ? key + 1 : 1;
+    }
+
+    public synchronized void open() throws IOException {
+        boolean fresh = !file.exists() || file.length() < HEADER_SIZE;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        if (fresh) {
+            slots = INITIAL_SLOTS;
+            map(slots);
+            map.putInt(0, FILE_MAGIC);
+            map.putInt(OFF_VERSION, VERSION);
+            map.putInt(8, RECORD_SIZE);
+            map.putInt(OFF_SLOTS, slots);
+            map.putLong(OFF_NEXT_ID, 1);
+            map.force();
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != FILE_MAGIC || header.getInt(OFF_VERSION) != VERSION
+                    || header.getInt(8) != RECORD_SIZE) {
+                close();
+                throw new IOException("Formato de banco desconocido: " + file);
+            }
+            slots = header.getInt(OFF_SLOTS);
+            // Si el archivo quedó más corto (se cortó al crecer), se completa
+            map(slots);
+        }
+
+        used.clear();
+        index.clear();
+        for (int slot = 0; slot < slots; slot++) {
+            long key = keyAt(slot);
+            if (key != 0) {
+                used.set(slot);
+                index.put(key, slot);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        map = null;
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    public synchronized int capacity() {
+        return slots;
+    }
+
+    public synchronized int usedSlots() {
+        return used.cardinality();
+    }
+
+    // Ids de canción que nunca se reusan, aunque se borre la última
+    public synchronized long nextId() {
+        long id = map.getLong(OFF_NEXT_ID);
+        map.putLong(OFF_NEXT_ID, id + 1);
+        return id;
+    }
+
+    public synchronized void reserveIds(long upTo) {
+        if (map.getLong(OFF_NEXT_ID) <= upTo) {
+            map.putLong(OFF_NEXT_ID, upTo + 1);
+        }
+    }
+
+    // 0 si el slot está libre
+    public synchronized long keyAt(int slot) {
+        return map.getLong(offset(slot));
+    }
+
+    // -1 si no hay ninguna matriz con esa clave
+    public synchronized int slotOf(long key) {
+        Integer slot = index.get(key);
+        return slot != null ? slot : -1;
+    }
+
+    // Si el slot tiene exactamente esta matriz
+    public synchronized boolean matches(int slot, byte[] packed) {
+        return slot >= 0 && slot < slots && used.get(slot) && sameMatrix(slot, packed);
+    }
+
+    // Guarda la matriz con la clave que le asignó SongStore (su keyFor())
+    // y devuelve el slot. Si ya estaba, no escribe nada y devuelve el slot
+    // que tenía. Una clave ocupada por otra matriz es un error de quien llama.
+    public synchronized int store(long key, byte[] packed) throws IOException {
+        Integer existing = index.get(key);
+        if (existing != null) {
+            if (!sameMatrix(existing, packed)) {
+                throw new IOException("Clave ocupada por otra matriz: " + Long.toHexString(key));
+            }
+            return existing;
+        }
+
+        int slot = used.nextClearBit(0);
+        if (slot >= slots) {
+            grow();
+        }
+        int base = offset(slot);
+        for (int i = 0; i < packed.length; i++) {
+            map.put(base + MATRIX_OFFSET + i, packed[i]);
+        }
+        map.putLong(base, key);
+        used.set(slot);
+        index.put(key, slot);
+        return slot;
+    }
+
+    public synchronized void free(int slot) {
+        if (slot < 0 || slot >= slots || !used.get(slot)) {
+            return;
+        }
+        index.remove(keyAt(slot), slot);
+        map.putLong(offset(slot), 0);
+        used.clear(slot);
+    }
+
+    // store() y free() escriben en el mapeo; esto los baja a disco. Se llama
+    // una vez por tanda de cambios, no por cada uno.
+    public synchronized void force() {
+        if (map != null) {
+            map.force();
+        }
+    }
+
+    // Escribe sobre 'into' (16x4). false si el slot está libre o roto.
+    public synchronized boolean read(int slot, int[][] into) {
+        if (slot < 0 || slot >= slots || !used.get(slot)) {
+            return false;
+        }
+        return MatrixCodec.decodeBinary(packedAt(slot), into);
+    }
+
+    // ============================
+    //   ARCHIVO
+    // ============================
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    // Devuelve 'scratch': se pisa en la próxima llamada
+    private byte[] packedAt(int slot) {
+        int base = offset(slot) + MATRIX_OFFSET;
+        for (int i = 0; i < scratch.length; i++) {
+            scratch[i] = map.get(base + i);
+        }
+        return scratch;
+    }
+
+    private boolean sameMatrix(int slot, byte[] packed) {
+        int base = offset(slot) + MATRIX_OFFSET;
+        for (int i = 0; i < packed.length; i++) {
+            if (map.get(base + i) != packed[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void map(int slotCount) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, offset(slotCount));
+    }
+
+    // Duplica la cantidad de slots. Los registros no se mueven: sólo se
+    // agranda el archivo y el mapeo.
+    private void grow() throws IOException {
+        int newSlots = slots * 2;
+        map(newSlots);
+        map.putInt(OFF_SLOTS, newSlots);
+        slots = newSlots;
+    }
+}
@@ -0,0 +1,159 @@
+package com.ashencostha.mqtt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+// Índice de nombres para buscar mientras se escribe. Cada nombre se parte en
+// palabras normalizadas (minúsculas, sin acentos: "Canción" -> "cancion") y
+// cada palabra apunta a los ids de las canciones que la tienen. Las palabras
+// están ordenadas, así que todas las que empiezan con lo que se escribió son
+// un rango contiguo (subMap) y buscar no depende de cuántas canciones hay
+// sino de cuántas palabras coinciden.
+//
+// Una búsqueda de varias palabras ("mi est") devuelve las canciones que
+// tienen, para cada una, alguna palabra que empieza así ("Mi estribillo").
+//
+// No es thread-safe: SongStore lo usa con su propio lock.
+public class SongIndex {
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Palabra -> ids, los dos ordenados
+    private final TreeMap<String, TreeSet<Long>> words = new TreeMap<>();
+
+    // Palabras distintas de un nombre o de lo que se busca
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+                .replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        for (String token : SEPARATORS.split(normalized)) {
+            if (!token.isEmpty() && !tokens.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    public void add(long id, String name) {
+        for (String token : tokens(name)) {
+            TreeSet<Long> ids = words.get(token);
+            if (ids == null) {
+                ids = new TreeSet<>();
+                words.put(token, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    public void remove(long id, String name) {
+        for (String token : tokens(name)) {
+            TreeSet<Long> ids = words.get(token);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                words.remove(token);
+            }
+        }
+    }
+
+    public void clear() {
+        words.clear();
+    }
+
+    public int wordCount() {
+        return words.size();
+    }
+
+    // Hasta 'limit' ids, de menor a mayor (= orden en que se guardaron). Sin
+    // palabras en 'query' no devuelve nada: eso es "mostrar todo" y lo hace
+    // el listado normal.
+    public List<Long> search(String query, int limit) {
+        List<String> prefixes = tokens(query);
+        if (prefixes.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // Primero el prefijo que menos ids junta, y los demás sólo filtran
+        TreeSet<Long> result = null;
+        for (String prefix : prefixes) {
+            TreeSet<Long> matches = matching(prefix);
+            if (result == null || matches.size() < result.size()) {
+                if (result != null) {
+                    matches.retainAll(result);
+                }
+                result = matches;
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        List<Long> ids = new ArrayList<>(Math.min(limit, result.size()));
+        for (Long id : result) {
+            if (ids.size() == limit) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    // Ids de todas las palabras que empiezan con 'prefix'
+    private TreeSet<Long> matching(String prefix) {
+        NavigableMap<String, TreeSet<Long>> range =
+                words.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        TreeSet<Long> ids = new TreeSet<>();
+        for (TreeSet<Long> set : range.values()) {
+            ids.addAll(set);
+        }
+        return ids;
+    }
+
+    // ============================
+    //   ARCHIVO
+    // ============================
+    // int cantidad de palabras, y por cada una: UTF palabra, int n, n long ids
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(words.size());
+        for (Map.Entry<String, TreeSet<Long>> entry : words.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (long id : entry.getValue()) {
+                out.writeLong(id);
+            }
+        }
+    }
+
+    // Reemplaza el contenido por lo leído
+    public void readFrom(DataInputStream in) throws IOException {
+        words.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String token = in.readUTF();
+            int n = in.readInt();
+            if (n <= 0) {
+                throw new IOException("Índice inválido");
+            }
+            TreeSet<Long> ids = new TreeSet<>();
+            for (int j = 0; j < n; j++) {
+                ids.add(in.readLong());
+            }
+            words.put(token, ids);
+        }
+    }
+}
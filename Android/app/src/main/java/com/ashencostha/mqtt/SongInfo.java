@@ -0,0 +1,45 @@
+package com.ashencostha.mqtt;
+
+// Lo que hace falta para listar una canción, sin la matriz.
+// La matriz se lee recién al cargarla (SongStore.load); 'content' es su clave
+// en el banco (SongBank.keyOf), igual para dos canciones con la misma matriz.
+public final class SongInfo {
+    private final long id;
+    private final String name;
+    private final long created;
+    private final long modified;
+    private final long content;
+
+    public SongInfo(long id, String name, long created, long modified, long content) {
+        this.id = id;
+        this.name = name;
+        this.created = created;
+        this.modified = modified;
+        this.content = content;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public long getContent() {
+        return content;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,160 @@
+package com.ashencostha.mqtt;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+// JSON de canciones: {"name": "...", "matrix": [[v, v, v, v], ...]}, el mismo
+// formato que generaba Gson por reflexión para SongListJSON.
+//
+// Un solo Gson armado una vez, con TypeAdapters escritos a mano para Song y
+// para la matriz (sin reflexión ni TypeToken por llamada). Para bibliotecas
+// enteras están readArray() y ArrayWriter, que van de a una canción sobre el
+// stream sin armar nunca la lista completa.
+public final class SongJson {
+
+    public interface SongSink {
+        void accept(Song song) throws IOException;
+    }
+
+    private SongJson() {}
+
+    // Matriz 16x4. Al leer, lo que sobra se ignora y lo que falta queda en 0.
+    public static final TypeAdapter<int[][]> MATRIX = new TypeAdapter<int[][]>() {
+        @Override
+        public void write(JsonWriter out, int[][] matrix) throws IOException {
+            if (matrix == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (int[] row : matrix) {
+                out.beginArray();
+                for (int value : row) {
+                    out.value(value);
+                }
+                out.endArray();
+            }
+            out.endArray();
+        }
+
+        @Override
+        public int[][] read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            int[][] matrix = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+            in.beginArray();
+            for (int i = 0; in.hasNext(); i++) {
+                in.beginArray();
+                for (int j = 0; in.hasNext(); j++) {
+                    int value = in.nextInt();
+                    if (i < MatrixCodec.ROWS && j < MatrixCodec.COLS) {
+                        matrix[i][j] = value;
+                    }
+                }
+                in.endArray();
+            }
+            in.endArray();
+            return matrix;
+        }
+    };
+
+    // El id no viaja: es de cada SongStore
+    public static final TypeAdapter<Song> SONG = new TypeAdapter<Song>() {
+        @Override
+        public void write(JsonWriter out, Song song) throws IOException {
+            if (song == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("name").value(song.getName());
+            out.name("matrix");
+            MATRIX.write(out, song.getMatrix());
+            out.endObject();
+        }
+
+        @Override
+        public Song read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String name = null;
+            int[][] matrix = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String field = in.nextName();
+                if (field.equals("name") && in.peek() != JsonToken.NULL) {
+                    name = in.nextString();
+                } else if (field.equals("matrix")) {
+                    matrix = MATRIX.read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Song(name, matrix);
+        }
+    };
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Song.class, SONG)
+            .registerTypeAdapter(int[][].class, MATRIX)
+            .create();
+
+    // ============================
+    //   STREAMING
+    // ============================
+
+    // Lee un array de canciones y se las pasa a 'sink' de a una. Los null y
+    // las canciones sin nombre o sin matriz se saltean. Devuelve cuántas pasó.
+    public static int readArray(Reader reader, SongSink sink) throws IOException {
+        JsonReader in = new JsonReader(reader);
+        if (in.peek() == JsonToken.NULL) {
+            return 0;
+        }
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            Song song = SONG.read(in);
+            if (song != null && song.getName() != null && song.getMatrix() != null) {
+                sink.accept(song);
+                count++;
+            }
+        }
+        in.endArray();
+        return count;
+    }
+
+    // Escribe un array de canciones a medida que se le pasan
+    public static final class ArrayWriter implements Closeable {
+        private final JsonWriter out;
+
+        public ArrayWriter(Writer writer) throws IOException {
+            out = new JsonWriter(writer);
+            out.beginArray();
+        }
+
+        public void write(Song song) throws IOException {
+            SONG.write(out, song);
+        }
+
+        // Cierra el array y el Writer
+        @Override
+        public void close() throws IOException {
+            out.endArray();
+            out.close();
+        }
+    }
+}
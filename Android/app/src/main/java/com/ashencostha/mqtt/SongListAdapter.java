@@ -0,0 +1,96 @@
+package com.ashencostha.mqtt;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lista de canciones para SavedSongsActivity. Pide al SongStore sólo los
+// datos de la página que se está mostrando (PAGE_SIZE canciones, sin
+// matrices) a medida que se scrollea, y se queda con unas pocas páginas.
+// Con un filtro (setQuery) muestra en cambio los resultados del índice de
+// nombres, que se piden de una vez.
+public class SongListAdapter extends BaseAdapter {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 8;
+    private static final int MAX_RESULTS = 200;
+
+    private final Context context;
+    private final SongStore store;
+    private final Map<Integer, List<SongInfo>> pages = new HashMap<>();
+    private int count;
+    private String query = "";
+    private List<SongInfo> results;   // null: sin filtro
+
+    public SongListAdapter(Context context, SongStore store) {
+        this.context = context;
+        this.store = store;
+        this.count = store.count();
+    }
+
+    // Después de borrar o guardar: se vuelve a pedir todo
+    public void refresh() {
+        pages.clear();
+        count = store.count();
+        results = query.trim().isEmpty() ? null : store.search(query, MAX_RESULTS);
+        notifyDataSetChanged();
+    }
+
+    // Se llama con cada tecla; vacío vuelve al listado completo
+    public void setQuery(String query) {
+        this.query = query != null ? query : "";
+        refresh();
+    }
+
+    @Override
+    public int getCount() {
+        return results != null ? results.size() : count;
+    }
+
+    @Override
+    public SongInfo getItem(int position) {
+        if (results != null) {
+            return position < results.size() ? results.get(position) : null;
+        }
+        int pageIndex = position / PAGE_SIZE;
+        List<SongInfo> page = pages.get(pageIndex);
+        if (page == null) {
+            if (pages.size() >= MAX_PAGES) {
+                pages.clear();
+            }
+            page = store.page(pageIndex * PAGE_SIZE, PAGE_SIZE);
+            pages.put(pageIndex, page);
+        }
+        int index = position % PAGE_SIZE;
+        return index < page.size() ? page.get(index) : null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        SongInfo info = getItem(position);
+        return info != null ? info.getId() : -1;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            convertView = LayoutInflater.from(context).inflate(
+                    android.R.layout.simple_list_item_single_choice, parent, false);
+        }
+        SongInfo info = getItem(position);
+        ((TextView) convertView).setText(info != null ? info.getName() : "");
+        return convertView;
+    }
+}
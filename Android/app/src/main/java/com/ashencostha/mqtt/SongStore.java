@@ -0,0 +1,905 @@
+package com.ashencostha.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Biblioteca de canciones. Antes estaban todas juntas en un solo JSON dentro
+// de SharedPreferences, y guardar o borrar una implicaba leer, parsear y
+// reescribir la biblioteca entera. Acá guardar, borrar o cargar una canción
+// toca sólo lo de esa canción.
+//
+// Las matrices van en "songs.bank" (SongBank): registros fijos mapeados en
+// memoria, uno por matriz distinta. Cada canción apunta a la suya por la
+// clave de contenido (SongInfo.getContent(), el hash de la matriz o, si ese
+// ya lo usa otra, la siguiente clave libre), así que guardar el mismo patrón
+// con otro nombre sólo agrega una referencia, y saber si un patrón ya está
+// guardado (findByContent) es buscar esa clave en un mapa. La matriz se
+// libera del banco cuando se borra la última canción que la usa.
+//
+// Para listar no se toca el banco: id, nombre, fechas y clave están en
+// "catalog.bin", un log al que sólo se le agregan registros (alta o baja) y
+// que se lee una vez al abrir. Cuando tiene más bajas que canciones vivas se
+// reescribe compacto. Un alta está completa cuando llegó al catálogo.
+//
+// Para buscar por nombre mientras se escribe está el SongIndex, en memoria.
+// En "names.idx" se guarda una foto del índice sólo al compactar el catálogo
+// (y al cerrar), con cuántos registros del catálogo refleja; como entre
+// compactaciones el catálogo sólo crece, al abrir se carga la foto y se le
+// aplican los registros que vinieron después. Si no está, se rearma entero.
+//
+// insert() y delete() no tocan el disco: actualizan la vista en memoria (que
+// es lo que ven las lecturas) y encolan la operación. Un único escritor, en
+// el Executor que se pase, baja todo lo encolado junto con flush(): un solo
+// force() del banco y un solo flush del catálogo por tanda. Un alta que se
+// borra antes de llegar al disco no se escribe nunca. Si una tanda falla
+// (ej: disco lleno) vuelve entera a la cola, se reintenta cada vez más
+// espaciado y se avisa al FailureListener.
+public class SongStore {
+
+    private static final int CATALOG_MAGIC = 0x53434C03;   // "SCL" + versión 3
+    private static final String CATALOG = "catalog.bin";
+    private static final String BANK = "songs.bank";
+    private static final int INDEX_MAGIC = 0x53494458;   // "SIDX"
+    private static final String INDEX = "names.idx";
+
+    private static final byte OP_PUT    = 1;
+    private static final byte OP_DELETE = 2;
+
+    // No vale la pena compactar un log chico
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    // Matrices decodificadas que se guardan (LRU), para ir y volver entre las
+    // últimas canciones sin pasar por el banco
+    private static final int MAX_DECODED = 16;
+
+    // Al importar se baja a disco cada tantas canciones, para no acumularlas
+    private static final int IMPORT_BATCH = 256;
+
+    // Cada cuántas canciones se avisa el avance al importar/exportar
+    private static final int PROGRESS_STEP = 32;
+
+    // Reintentos de una tanda que no se pudo bajar: 1 s, 2 s, 4 s... hasta 1 min
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS  = 60_000;
+
+    // Aviso de que una tanda no se pudo bajar a disco. Sigue en memoria y se
+    // reintenta sola; 'attempt' cuenta los fallos seguidos.
+    public interface FailureListener {
+        void onFlushFailed(IOException error, int attempt);
+    }
+
+    private static final class FailureTarget {
+        final Executor executor;
+        final FailureListener listener;
+
+        FailureTarget(Executor executor, FailureListener listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
+    // Operación encolada para el escritor. 'packed' sólo en las altas.
+    private static final class Op {
+        final byte type;
+        final SongInfo info;
+        final byte[] packed;
+
+        Op(byte type, SongInfo info, byte[] packed) {
+            this.type = type;
+            this.info = info;
+            this.packed = packed;
+        }
+    }
+
+    private final File dir;
+    private final File catalogFile;
+    private final SongBank bank;
+    private final Executor writer;
+
+    // Vista en memoria, con el lock de this
+
+    // Canciones vivas ordenadas por id (= orden en que se guardaron)
+    private final List<SongInfo> catalog = new ArrayList<>();
+    // Clave de contenido -> canciones vivas con esa matriz
+    private final Map<Long, List<SongInfo>> byContent = new HashMap<>();
+    private List<Op> pending = new ArrayList<>();
+    // La tanda que está bajando el escritor
+    private List<Op> writing = Collections.emptyList();
+    // Matrices (por clave) que todavía no están en el banco
+    private final Map<Long, int[][]> unwritten = new HashMap<>();
+    private final Map<Long, int[][]> decoded =
+            new LinkedHashMap<Long, int[][]>(MAX_DECODED, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, int[][]> eldest) {
+                    return size() > MAX_DECODED;
+                }
+            };
+    private final SongIndex index = new SongIndex();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile FailureTarget failureTarget;
+
+    // Disco, con ioLock (el banco además se cuida solo)
+    private final Object ioLock = new Object();
+    private int catalogRecords = 0;
+    // Registros del catálogo que refleja names.idx, o -1 si no hay foto
+    private int indexedRecords = -1;
+    private int catalogVersion;
+    private boolean catalogIntact;
+    private DataOutputStream catalogOut;
+    // Una tanda falló a mitad del catálogo: la próxima lo reescribe entero
+    // en vez de seguir agregando detrás de un registro que puede estar roto
+    private boolean catalogDirty;
+    private int failedFlushes;
+    private ScheduledExecutorService retryTimer;
+
+    public SongStore(File dir, Executor writer) {
+        this.dir = dir;
+        this.catalogFile = new File(dir, CATALOG);
+        this.bank = new SongBank(new File(dir, BANK));
+        this.writer = writer;
+    }
+
+    // Abre banco y catálogo y los pone de acuerdo: una canción cuya matriz no
+    // está en el banco se descarta, y una matriz que ninguna canción usa (ej:
+    // se cortó antes de anotar el alta, o se perdió el catálogo) se recupera
+    // como canción con un nombre genérico.
+    public void open() throws IOException {
+        synchronized (ioLock) {
+            synchronized (this) {
+                openLocked();
+            }
+        }
+    }
+
+    private void openLocked() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("No se pudo crear " + dir);
+        }
+        bank.open();
+        catalog.clear();
+        byContent.clear();
+        decoded.clear();
+        unwritten.clear();
+        pending.clear();
+        index.clear();
+        int indexed = loadIndex();
+        Map<Long, SongInfo> entries = readCatalog(indexed);
+        if (indexed > catalogRecords) {
+            indexed = -1;   // la foto es de otro catálogo
+            indexedRecords = -1;
+        }
+        boolean repaired = !catalogIntact || catalogVersion != CATALOG_MAGIC;
+
+        for (SongInfo info : entries.values()) {
+            if (bank.slotOf(info.getContent()) >= 0) {
+                addLive(info);
+            } else {
+                repaired = true;
+            }
+        }
+
+        Collections.sort(catalog, (a, b) -> Long.compare(a.getId(), b.getId()));
+        if (!catalog.isEmpty()) {
+            bank.reserveIds(catalog.get(catalog.size() - 1).getId());
+        }
+
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < bank.capacity(); slot++) {
+            long key = bank.keyAt(slot);
+            if (key != 0 && !byContent.containsKey(key)) {
+                long id = bank.nextId();
+                addLive(new SongInfo(id, "Canción " + id, now, now, key));
+                repaired = true;
+            }
+        }
+        bank.force();
+
+        boolean rewritten = false;
+        if (repaired || catalogRecords > 2 * catalog.size() + MIN_COMPACT_RECORDS) {
+            rewriteCatalog();   // también guarda la foto del índice
+            rewritten = true;
+        }
+
+        if (repaired || indexed < 0) {
+            index.clear();
+            for (SongInfo info : catalog) {
+                index.add(info.getId(), info.getName());
+            }
+            if (!rewritten) {
+                saveIndex(catalog);
+            }
+        }
+    }
+
+    // Se llama en 'executor' cada vez que falla una tanda. null para sacarlo.
+    public void setFailureListener(Executor executor, FailureListener listener) {
+        failureTarget = listener != null ? new FailureTarget(executor, listener) : null;
+    }
+
+    private void addLive(SongInfo info) {
+        catalog.add(info);
+        List<SongInfo> refs = byContent.get(info.getContent());
+        if (refs == null) {
+            refs = new ArrayList<>(1);
+            byContent.put(info.getContent(), refs);
+        }
+        refs.add(info);
+    }
+
+    // Baja lo pendiente y cierra los archivos
+    public void close() throws IOException {
+        synchronized (ioLock) {
+            if (retryTimer != null) {
+                retryTimer.shutdownNow();
+                retryTimer = null;
+            }
+            flush();
+            if (catalogRecords != indexedRecords) {
+                // Compacta y deja la foto del índice al día para el próximo open
+                rewriteCatalog();
+            }
+            closeCatalog();
+            bank.close();
+        }
+    }
+
+    // Devuelve el id asignado. No escribe en disco (ver flush()). Si la
+    // matriz ya estaba guardada, la canción nueva sólo la referencia.
+    public long insert(String name, int[][] matrix) {
+        byte[] packed = MatrixCodec.encodeBinary(matrix);
+        long id;
+        synchronized (this) {
+            long content = keyFor(packed);
+            id = bank.nextId();
+            long now = System.currentTimeMillis();
+            SongInfo info = new SongInfo(id, name, now, now, content);
+            addLive(info);
+            index.add(id, name);
+            pending.add(new Op(OP_PUT, info, packed));
+
+            int[][] copy = decoded.get(content);
+            if (copy == null) {
+                copy = unwritten.get(content);
+            }
+            if (copy == null) {
+                // Desde lo empaquetado: lo mismo que después se lee del banco
+                copy = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+                MatrixCodec.decodeBinary(packed, copy);
+            }
+            if (bank.slotOf(content) < 0) {
+                unwritten.put(content, copy);
+            }
+            // Lo más probable es que la próxima que se cargue sea ésta
+            decoded.put(content, copy);
+        }
+        scheduleFlush();
+        return id;
+    }
+
+    public boolean delete(long id) {
+        synchronized (this) {
+            int position = indexOf(id);
+            if (position < 0) {
+                return false;
+            }
+            SongInfo info = catalog.remove(position);
+            index.remove(id, info.getName());
+            long content = info.getContent();
+            List<SongInfo> refs = byContent.get(content);
+            refs.remove(info);
+            boolean neverWritten = removePendingPut(id) && bank.slotOf(content) < 0;
+            if (refs.isEmpty()) {
+                byContent.remove(content);
+                decoded.remove(content);
+                // Si el escritor la está por guardar, la clave sigue tomada
+                // hasta que termine (ver keyFor())
+                if (!hasPut(pending, content) && !hasPut(writing, content)) {
+                    unwritten.remove(content);
+                }
+            }
+            if (neverWritten) {
+                return true;   // nunca llegó al disco: no hay nada que borrar
+            }
+            // Puede haber llegado en una tanda que falló y volvió a la cola:
+            // la baja libera la matriz si nadie más la usa
+            pending.add(new Op(OP_DELETE, info, null));
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    private boolean removePendingPut(long id) {
+        for (Iterator<Op> it = pending.iterator(); it.hasNext(); ) {
+            Op op = it.next();
+            if (op.type == OP_PUT && op.info.getId() == id) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;   // el escritor ya la está bajando
+    }
+
+    private static boolean hasPut(List<Op> ops, long content) {
+        for (Op op : ops) {
+            if (op.type == OP_PUT && op.info.getContent() == content) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Clave de 'packed': la de su hash o, si ésa ya la tiene otra matriz
+    // (colisión), la siguiente que esté libre o que tenga esta misma. Mira
+    // también las que todavía no llegaron al banco. Con el lock de this.
+    private long keyFor(byte[] packed) {
+        for (long key = SongBank.keyOf(packed); ; key = SongBank.nextKey(key)) {
+            int[][] waiting = unwritten.get(key);
+            if (waiting != null) {
+                if (Arrays.equals(MatrixCodec.encodeBinary(waiting), packed)) {
+                    return key;
+                }
+            } else {
+                int slot = bank.slotOf(key);
+                if (slot < 0 || bank.matches(slot, packed)) {
+                    return key;
+                }
+            }
+        }
+    }
+
+    // Alguna canción guardada con exactamente esta matriz, o null
+    public synchronized SongInfo findByContent(int[][] matrix) {
+        List<SongInfo> refs = byContent.get(keyFor(MatrixCodec.encodeBinary(matrix)));
+        return refs != null ? refs.get(0) : null;
+    }
+
+    // Cuántas matrices distintas hay (lo que ocupa lugar en el banco)
+    public synchronized int distinctMatrices() {
+        return byContent.size();
+    }
+
+    // null si no existe
+    public synchronized Song load(long id) throws IOException {
+        int position = indexOf(id);
+        if (position < 0) {
+            return null;
+        }
+        SongInfo info = catalog.get(position);
+        Song song = new Song(info.getName(), copyOf(decodedMatrix(info.getContent())));
+        song.setId(id);
+        return song;
+    }
+
+    // Copia la matriz de la canción sobre 'into' (16x4), sin alocar si ya
+    // está decodificada. false si la canción no existe.
+    public synchronized boolean loadMatrix(long id, int[][] into) throws IOException {
+        int position = indexOf(id);
+        if (position < 0) {
+            return false;
+        }
+        copyInto(decodedMatrix(catalog.get(position).getContent()), into);
+        return true;
+    }
+
+    // Las matrices del cache no salen de acá: afuera sólo van copias
+    private int[][] decodedMatrix(long content) throws IOException {
+        int[][] matrix = decoded.get(content);
+        if (matrix == null) {
+            matrix = unwritten.get(content);
+        }
+        if (matrix == null) {
+            matrix = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+            readFromBank(content, matrix);
+        }
+        decoded.put(content, matrix);
+        return matrix;
+    }
+
+    // Como loadMatrix() pero sin tocar el cache (para recorrer la biblioteca)
+    private synchronized boolean readMatrix(SongInfo info, int[][] into) throws IOException {
+        if (indexOf(info.getId()) < 0) {
+            return false;
+        }
+        int[][] matrix = decoded.get(info.getContent());
+        if (matrix == null) {
+            matrix = unwritten.get(info.getContent());
+        }
+        if (matrix != null) {
+            copyInto(matrix, into);
+        } else {
+            readFromBank(info.getContent(), into);
+        }
+        return true;
+    }
+
+    private void readFromBank(long content, int[][] into) throws IOException {
+        if (!bank.read(bank.slotOf(content), into)) {
+            throw new IOException("Matriz inválida: " + Long.toHexString(content));
+        }
+    }
+
+    private static void copyInto(int[][] from, int[][] into) {
+        for (int i = 0; i < MatrixCodec.ROWS; i++) {
+            System.arraycopy(from[i], 0, into[i], 0, MatrixCodec.COLS);
+        }
+    }
+
+    private static int[][] copyOf(int[][] matrix) {
+        int[][] copy = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        copyInto(matrix, copy);
+        return copy;
+    }
+
+    // ============================
+    //   ESCRITOR
+    // ============================
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+        }
+    }
+
+    // Baja a disco todo lo encolado hasta ahora. Si falla, la tanda vuelve al
+    // frente de la cola (lo que se encoló mientras tanto sigue detrás), se
+    // programa un reintento y se avisa al FailureListener.
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            List<Op> ops;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                ops = pending;
+                pending = new ArrayList<>();
+                writing = ops;
+            }
+            try {
+                writeBatch(ops);
+            } catch (IOException e) {
+                synchronized (this) {
+                    writing = Collections.emptyList();
+                    ops.addAll(pending);
+                    pending = ops;
+                }
+                closeCatalog();
+                catalogDirty = true;
+                failedFlushes++;
+                retryLater(e);
+                throw e;
+            }
+            synchronized (this) {
+                writing = Collections.emptyList();
+            }
+            failedFlushes = 0;
+        }
+    }
+
+    // Primero las matrices al banco (sólo las que no estaban), después el
+    // catálogo (ahí el alta queda completa) y recién entonces se liberan las
+    // matrices que nadie usa. Repetir una tanda no rompe nada: store() de una
+    // matriz que ya está no escribe, y el catálogo, si quedó a medias, se
+    // reescribe desde la vista en memoria.
+    private void writeBatch(List<Op> ops) throws IOException {
+        for (Op op : ops) {
+            if (op.type == OP_PUT) {
+                bank.store(op.info.getContent(), op.packed);
+            }
+        }
+        bank.force();
+
+        if (catalogDirty) {
+            rewriteCatalog();
+        } else {
+            for (Op op : ops) {
+                appendCatalog(op.type, op.info);
+            }
+            flushCatalog();
+        }
+
+        boolean freed = false;
+        synchronized (this) {
+            // Con el lock de this: un insert() de la misma matriz no puede
+            // colarse entre el chequeo y el free
+            for (Op op : ops) {
+                long content = op.info.getContent();
+                if (op.type == OP_DELETE) {
+                    if (!byContent.containsKey(content)) {
+                        bank.free(bank.slotOf(content));
+                        freed = true;
+                    }
+                } else if (bank.slotOf(content) >= 0) {
+                    unwritten.remove(content);
+                }
+            }
+        }
+        if (freed) {
+            bank.force();
+        }
+        if (catalogRecords > 2 * count() + MIN_COMPACT_RECORDS) {
+            rewriteCatalog();
+        }
+    }
+
+    // Con ioLock
+    private void retryLater(IOException error) {
+        long delay = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(failedFlushes - 1, 16));
+        if (retryTimer == null) {
+            retryTimer = Executors.newSingleThreadScheduledExecutor();
+        }
+        retryTimer.schedule(this::scheduleFlush, delay, TimeUnit.MILLISECONDS);
+
+        FailureTarget target = failureTarget;
+        if (target != null) {
+            int attempt = failedFlushes;
+            target.executor.execute(() -> target.listener.onFlushFailed(error, attempt));
+        }
+    }
+
+    // ============================
+    //   LISTADO (sin matrices)
+    // ============================
+
+    public synchronized int count() {
+        return catalog.size();
+    }
+
+    // Hasta 'limit' canciones a partir de la posición 'offset', en el orden
+    // en que se guardaron
+    public synchronized List<SongInfo> page(int offset, int limit) {
+        if (offset < 0 || offset >= catalog.size() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int end = Math.min(catalog.size(), offset + limit);
+        return new ArrayList<>(catalog.subList(offset, end));
+    }
+
+    public synchronized SongInfo info(long id) {
+        int position = indexOf(id);
+        return position < 0 ? null : catalog.get(position);
+    }
+
+    // Canciones con alguna palabra que empieza con cada palabra de 'query'
+    // (sin importar mayúsculas ni acentos), hasta 'limit', en el orden en que
+    // se guardaron. Vacía si 'query' no tiene palabras.
+    public synchronized List<SongInfo> search(String query, int limit) {
+        List<SongInfo> songs = new ArrayList<>();
+        for (long id : index.search(query, limit)) {
+            int position = indexOf(id);
+            if (position >= 0) {
+                songs.add(catalog.get(position));
+            }
+        }
+        return songs;
+    }
+
+    // ============================
+    //   IMPORTAR / EXPORTAR (JSON)
+    // ============================
+
+    // Avance de importar/exportar. 'total' es -1 si no se sabe (al importar
+    // se lee a medida que llega). Se llama desde el hilo que importa/exporta.
+    public interface Progress {
+        void update(int done, int total);
+    }
+
+    // Agrega cada canción de un array JSON (SongJson) a medida que se lee,
+    // ej: el SongListJSON viejo. Devuelve cuántas agregó. Baja a disco de a
+    // tandas en el hilo que llama, así que no va en el hilo principal.
+    public int importFrom(Reader in) throws IOException {
+        return importFrom(in, false, null);
+    }
+
+    // Con 'skipDuplicates' no agrega las que ya están con el mismo nombre y la
+    // misma matriz (ej: volver a importar el mismo backup). 'progress' puede
+    // ser null.
+    public int importFrom(Reader in, boolean skipDuplicates, Progress progress) throws IOException {
+        int[] read = new int[1];
+        int[] added = new int[1];
+        SongJson.readArray(in, song -> {
+            if (!skipDuplicates || !contains(song.getName(), song.getMatrix())) {
+                insert(song.getName(), song.getMatrix());
+                if (++added[0] % IMPORT_BATCH == 0) {
+                    flush();
+                }
+            }
+            if (++read[0] % PROGRESS_STEP == 0 && progress != null) {
+                progress.update(read[0], -1);
+            }
+        });
+        flush();
+        if (progress != null) {
+            progress.update(read[0], read[0]);
+        }
+        return added[0];
+    }
+
+    // Si ya hay una canción con este nombre y esta matriz
+    private synchronized boolean contains(String name, int[][] matrix) {
+        List<SongInfo> refs = byContent.get(keyFor(MatrixCodec.encodeBinary(matrix)));
+        if (refs != null) {
+            for (SongInfo info : refs) {
+                if (info.getName().equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int exportTo(Writer out) throws IOException {
+        return exportTo(out, null);
+    }
+
+    // Escribe toda la biblioteca como array JSON, de a una canción: sólo hay
+    // en memoria la que se está escribiendo. No pasa por el cache de matrices
+    // ni frena a insert()/delete() mientras escribe. Cierra 'out'.
+    public int exportTo(Writer out, Progress progress) throws IOException {
+        List<SongInfo> songs;
+        synchronized (this) {
+            songs = new ArrayList<>(catalog);
+        }
+        int[][] matrix = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        Song song = new Song(null, matrix);
+        int count = 0;
+        try (SongJson.ArrayWriter writer = new SongJson.ArrayWriter(out)) {
+            for (int i = 0; i < songs.size(); i++) {
+                SongInfo info = songs.get(i);
+                if (readMatrix(info, matrix)) {   // si no, se borró mientras tanto
+                    song.setName(info.getName());
+                    writer.write(song);
+                    count++;
+                }
+                if ((i + 1) % PROGRESS_STEP == 0 && progress != null) {
+                    progress.update(i + 1, songs.size());
+                }
+            }
+        }
+        if (progress != null) {
+            progress.update(songs.size(), songs.size());
+        }
+        return count;
+    }
+
+    // Los ids crecen con cada alta, así que el catálogo ya está ordenado
+    private int indexOf(long id) {
+        int low = 0;
+        int high = catalog.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = catalog.get(mid).getId();
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // ============================
+    //   ÍNDICE DE NOMBRES
+    // ============================
+    // int magic, int registros y long largo del catálogo que refleja, y
+    // después el SongIndex. Antes de reescribir el catálogo se borra, así
+    // una foto nunca queda apareada con un catálogo que no es el suyo.
+
+    // Carga la foto en 'index' y devuelve cuántos registros del catálogo
+    // refleja, o -1 si no hay (o no sirve) y hay que rearmarlo
+    private int loadIndex() {
+        File file = new File(dir, INDEX);
+        if (!file.exists()) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return -1;
+            }
+            int records = in.readInt();
+            if (records < 0 || in.readLong() > catalogFile.length()) {
+                return -1;
+            }
+            index.readFrom(in);
+            indexedRecords = records;
+            return records;
+        } catch (IOException e) {
+            e.printStackTrace();
+            index.clear();
+            return -1;
+        }
+    }
+
+    // Foto de 'songs', que tienen que ser justo las canciones del catálogo
+    // como está en disco. Se arma un SongIndex aparte, sin el lock de this:
+    // el de la vista en memoria sigue atendiendo búsquedas mientras tanto.
+    private void saveIndex(List<SongInfo> songs) throws IOException {
+        SongIndex snapshot = new SongIndex();
+        for (SongInfo info : songs) {
+            snapshot.add(info.getId(), info.getName());
+        }
+        File tmp = new File(dir, INDEX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(catalogRecords);
+            out.writeLong(catalogFile.length());
+            snapshot.writeTo(out);
+        }
+        if (!tmp.renameTo(new File(dir, INDEX))) {
+            throw new IOException("No se pudo reemplazar " + INDEX);
+        }
+        indexedRecords = catalogRecords;
+    }
+
+    // ============================
+    //   CATÁLOGO
+    // ============================
+    // int magic, y después registros: byte op, long id y, si es alta,
+    // long clave de contenido, long creada, long modificada, UTF nombre.
+
+    // Los registros desde el número 'indexed' (si no es -1) se aplican
+    // también a 'index': son los que vinieron después de la foto.
+    private Map<Long, SongInfo> readCatalog(int indexed) {
+        Map<Long, SongInfo> entries = new HashMap<>();
+        catalogRecords = 0;
+        catalogVersion = 0;
+        catalogIntact = false;
+        if (!catalogFile.exists()) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(catalogFile)))) {
+            catalogVersion = in.readInt();
+            if (catalogVersion != CATALOG_MAGIC) {
+                return entries;
+            }
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long id = in.readLong();
+                boolean replay = indexed >= 0 && catalogRecords >= indexed;
+                SongInfo old;
+                if (op == OP_PUT) {
+                    long content = in.readLong();
+                    long created = in.readLong();
+                    long modified = in.readLong();
+                    SongInfo info = new SongInfo(id, in.readUTF(), created, modified, content);
+                    old = entries.put(id, info);
+                    if (replay) {
+                        if (old != null) {
+                            index.remove(id, old.getName());
+                        }
+                        index.add(id, info.getName());
+                    }
+                } else if (op == OP_DELETE) {
+                    old = entries.remove(id);
+                    if (replay && old != null) {
+                        index.remove(id, old.getName());
+                    }
+                } else {
+                    throw new IOException("Registro inválido en " + catalogFile);
+                }
+                catalogRecords++;
+            }
+            catalogIntact = true;
+        } catch (IOException e) {
+            // Último registro a medias: lo que se leyó hasta ahí vale, y open()
+            // completa lo que falte desde el banco y lo reescribe
+            e.printStackTrace();
+        }
+        return entries;
+    }
+
+    private void appendCatalog(byte op, SongInfo info) throws IOException {
+        if (catalogOut == null) {
+            catalogOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(catalogFile, true)));
+        }
+        writeRecord(catalogOut, op, info);
+        catalogRecords++;
+    }
+
+    private void flushCatalog() throws IOException {
+        if (catalogOut != null) {
+            catalogOut.flush();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, SongInfo info) throws IOException {
+        out.writeByte(op);
+        out.writeLong(info.getId());
+        if (op == OP_PUT) {
+            out.writeLong(info.getContent());
+            out.writeLong(info.getCreated());
+            out.writeLong(info.getModified());
+            out.writeUTF(info.getName());
+        }
+    }
+
+    // Un alta por canción cuya matriz ya está en el banco, a un temporal que
+    // después se renombra
+    private void rewriteCatalog() throws IOException {
+        closeCatalog();
+        List<SongInfo> songs;
+        synchronized (this) {
+            songs = new ArrayList<>(catalog);
+        }
+        File tmp = new File(dir, CATALOG + ".tmp");
+        List<SongInfo> written = new ArrayList<>(songs.size());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(CATALOG_MAGIC);
+            for (SongInfo info : songs) {
+                if (bank.slotOf(info.getContent()) >= 0) {
+                    writeRecord(out, OP_PUT, info);
+                    written.add(info);
+                }
+            }
+        }
+        File indexFile = new File(dir, INDEX);
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("No se pudo borrar " + INDEX);
+        }
+        indexedRecords = -1;
+        if (!tmp.renameTo(catalogFile)) {
+            throw new IOException("No se pudo reemplazar " + catalogFile);
+        }
+        catalogRecords = written.size();
+        catalogVersion = CATALOG_MAGIC;
+        catalogDirty = false;
+        saveIndex(written);
+    }
+
+    private void closeCatalog() {
+        if (catalogOut != null) {
+            try {
+                catalogOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            catalogOut = null;
+        }
+    }
+}
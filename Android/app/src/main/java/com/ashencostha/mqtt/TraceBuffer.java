@@ -0,0 +1,162 @@
+package com.ashencostha.mqtt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Traza en memoria de lo que pasa en la app (publish, receive, conexión,
+// cambios de estado, sensores), para ver después qué pasó y cuándo.
+// Es el equivalente del lado Android a Metrics.cpp en el ESP32.
+//
+// Cada registro son 3 longs en un buffer circular de tamaño fijo:
+//   [secuencia + 1] [nanoTime] [evento (8 bits) | a (24 bits) | b (32 bits)]
+// record() no toma locks ni aloca: reserva un lugar con getAndIncrement y
+// escribe la secuencia al final, así dump() puede descartar los registros
+// que se estaban pisando mientras leía. Cuando se llena, pisa los más viejos.
+public class TraceBuffer {
+
+    // Tipos de evento
+    public static final int PUBLISH         = 1;   // a = topic, b = bytes
+    public static final int RECEIVE         = 2;   // a = topic, b = bytes
+    public static final int CONNECT         = 3;   // a = 1 si es reconexión
+    public static final int CONNECTION_LOST = 4;
+    public static final int RECONNECT_WAIT  = 5;   // a = intento, b = espera en ms
+    public static final int APP_STATE       = 6;   // a = AppState de MainActivity
+    public static final int ESP_STATUS      = 7;   // a = EspStatus
+    public static final int SENSOR          = 8;   // a = SENSOR_*, b = valor
+
+    public static final int SENSOR_GYRO  = 1;
+    public static final int SENSOR_SHAKE = 2;
+
+    private static final String[] EVENT_NAMES = {
+            "?", "PUBLISH", "RECEIVE", "CONNECT", "CONNECTION_LOST",
+            "RECONNECT_WAIT", "APP_STATE", "ESP_STATUS", "SENSOR"
+    };
+
+    private static final int WORDS = 3;
+
+    // Una sola traza para toda la app, como las métricas globales del ESP
+    public static final TraceBuffer APP = new TraceBuffer(4096);
+
+    private final int mask;
+    private final AtomicLongArray records;
+    private final AtomicLong cursor = new AtomicLong();
+
+    // Los topics se guardan como número; el nombre se resuelve recién en dump()
+    private final Map<String, Integer> topicIds = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<String> topicNames = new CopyOnWriteArrayList<>();
+
+    // capacity se redondea a potencia de 2
+    public TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        records = new AtomicLongArray(size * WORDS);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Cantidad de registros escritos desde el arranque (incluye los pisados)
+    public long written() {
+        return cursor.get();
+    }
+
+    public void record(int event, int a, int b) {
+        long seq = cursor.getAndIncrement();
+        int base = (int) (seq & mask) * WORDS;
+        records.lazySet(base, 0);   // invalida el registro mientras se escribe
+        records.lazySet(base + 1, System.nanoTime());
+        records.lazySet(base + 2, ((long) event << 56) | ((long) (a & 0xFFFFFF) << 32) | (b & 0xFFFFFFFFL));
+        records.set(base, seq + 1);
+    }
+
+    public void record(int event) {
+        record(event, 0, 0);
+    }
+
+    // Número fijo por topic; sólo la primera vez que aparece un topic aloca
+    public int topicId(String topic) {
+        Integer id = topicIds.get(topic);
+        if (id != null) {
+            return id;
+        }
+        synchronized (topicNames) {
+            id = topicIds.get(topic);
+            if (id == null) {
+                topicNames.add(topic);
+                id = topicNames.size() - 1;
+                topicIds.put(topic, id);
+            }
+            return id;
+        }
+    }
+
+    public void reset() {
+        cursor.set(0);
+        for (int i = 0; i < records.length(); i += WORDS) {
+            records.set(i, 0);
+        }
+    }
+
+    // ============================
+    //   DUMP
+    // ============================
+
+    // Registros del más viejo al más nuevo como
+    //   "t_ms;evento;a;b"  (t relativo al primer registro del dump)
+    // seguidos de la tabla de topics. Se puede llamar con la app andando.
+    public void dump(Writer out) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - capacity());
+        long firstNs = 0;
+        boolean first = true;
+
+        out.write("t_ms;event;a;b\n");
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & mask) * WORDS;
+            if (records.get(base) != seq + 1) {
+                continue;   // todavía escribiéndose o ya pisado
+            }
+            long t = records.get(base + 1);
+            long packed = records.get(base + 2);
+            if (records.get(base) != seq + 1) {
+                continue;
+            }
+            if (first) {
+                firstNs = t;
+                first = false;
+            }
+
+            int event = (int) (packed >>> 56);
+            int a = (int) ((packed >>> 32) & 0xFFFFFF);
+            int b = (int) packed;
+            out.write(String.format(Locale.US, "%.3f;%s;%s;%d\n",
+                    (t - firstNs) / 1e6, eventName(event), argName(event, a), b));
+        }
+
+        out.write("\n# topics\n");
+        for (int i = 0; i < topicNames.size(); i++) {
+            out.write(i + ";" + topicNames.get(i) + "\n");
+        }
+    }
+
+    private static String eventName(int event) {
+        return (event > 0 && event < EVENT_NAMES.length) ? EVENT_NAMES[event] : "?" + event;
+    }
+
+    private String argName(int event, int a) {
+        if ((event == PUBLISH || event == RECEIVE) && a < topicNames.size()) {
+            return topicNames.get(a);
+        }
+        if (event == ESP_STATUS && a < EspStatus.values().length) {
+            return EspStatus.values()[a].name();
+        }
+        return String.valueOf(a);
+    }
+}
@@ -0,0 +1,100 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    // Anota lo que el registro le pide a la conexión
+    private final List<String> calls = new ArrayList<>();
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private final DeviceRegistry registry = new DeviceRegistry(dispatcher, new DeviceRegistry.Connection() {
+        @Override
+        public void subscribe(String topic) {
+            calls.add("sub " + topic);
+        }
+
+        @Override
+        public void unsubscribe(String topic) {
+            calls.add("unsub " + topic);
+        }
+
+        @Override
+        public void publish(String topic, String message) {
+            calls.add("pub " + topic + " " + message);
+        }
+    });
+
+    private void status(SequencerDevice device, String status) {
+        dispatcher.dispatch(device.topicStatus, status.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void tracksTheStatusOfEachDevice() {
+        List<String> reported = new ArrayList<>();
+        registry.setStatusListener(MessageDispatcher.DIRECT,
+                (device, status) -> reported.add(device.getName() + "=" + status));
+        SequencerDevice bajo = new SequencerDevice("bajo");
+        assertTrue(registry.add(SequencerDevice.MAIN));
+        assertTrue(registry.add(bajo));
+        assertFalse(registry.add(new SequencerDevice("bajo")));
+        assertEquals(2, registry.size());
+        assertTrue(calls.contains("sub /simulator/bajo/status"));
+
+        status(bajo, "PLAY_ALL\n");
+        assertEquals("PLAY_ALL", registry.statusOf(bajo));
+        assertNull(registry.statusOf(SequencerDevice.MAIN));
+        assertEquals("bajo=PLAY_ALL", reported.get(0));
+    }
+
+    @Test
+    public void updateKeepsTheSubscription() {
+        SequencerDevice bajo = new SequencerDevice("bajo");
+        registry.add(bajo);
+        assertTrue(registry.update(bajo.withMatrixFormat(MatrixCodec.Format.BINARY)));
+        assertFalse(registry.update(new SequencerDevice("otro")));
+        assertEquals(1, calls.size());
+
+        List<SequencerDevice> reported = new ArrayList<>();
+        registry.setStatusListener(MessageDispatcher.DIRECT, (device, status) -> reported.add(device));
+        status(bajo, "IDLE");
+        assertEquals(MatrixCodec.Format.BINARY, reported.get(0).getMatrixFormat());
+        assertEquals(MatrixCodec.Format.BINARY, registry.get("bajo").getMatrixFormat());
+    }
+
+    @Test
+    public void removeForgetsTheDeviceButKeepsTheMainTopic() {
+        SequencerDevice bajo = new SequencerDevice("bajo");
+        registry.add(SequencerDevice.MAIN);
+        registry.add(bajo);
+        status(bajo, "IDLE");
+
+        assertTrue(registry.remove("bajo"));
+        assertFalse(registry.remove("bajo"));
+        assertNull(registry.statusOf(bajo));
+        assertTrue(calls.contains("unsub /simulator/bajo/status"));
+
+        // Ya no escucha su estado
+        status(bajo, "PLAY_ALL");
+        assertNull(registry.statusOf(bajo));
+
+        // El principal lo sigue usando MainActivity
+        assertTrue(registry.remove(""));
+        assertFalse(calls.contains("unsub /simulator/status"));
+    }
+
+    @Test
+    public void broadcastsStateWithOnePublish() {
+        registry.add(SequencerDevice.MAIN);
+        registry.add(new SequencerDevice("bajo"));
+        calls.clear();
+        registry.broadcastState("PLAY_ALL");
+        assertEquals(1, calls.size());
+        assertEquals("pub /simulator/all/state PLAY_ALL", calls.get(0));
+    }
+}
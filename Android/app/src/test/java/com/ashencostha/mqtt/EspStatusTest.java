@@ -0,0 +1,41 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class EspStatusTest {
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void parsesKnownStatesIgnoringWhitespace() {
+        assertEquals(EspStatus.PLAY_ALL, EspStatus.parse(ascii("PLAY_ALL")));
+        assertEquals(EspStatus.PLAY_LINE, EspStatus.parse(ascii(" PLAY_LINE\r\n")));
+        assertEquals(EspStatus.IDLE, EspStatus.parse(ascii("IDLE")));
+        assertNull(EspStatus.parse(ascii("PLAY")));
+        assertNull(EspStatus.parse(new byte[0]));
+    }
+
+    @Test
+    public void textDecoderReusesConstantNames() {
+        assertSame(EspStatus.EDIT.name(), EspStatus.TEXT.decode(ascii("EDIT")));
+        assertEquals("BOOT", EspStatus.TEXT.decode(ascii("BOOT\n")));
+    }
+
+    @Test
+    public void latencyEchoMatchesRawPayload() {
+        LatencyProbe probe = new LatencyProbe();
+        probe.commandSent(LatencyProbe.Kind.SYNC, "@12");
+
+        byte[] ack = ascii("@12");
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.SYNC, ascii("@1"), 0, 2));
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.SYNC, ack, 0, ack.length));
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.SYNC, ack, 0, ack.length));
+        assertEquals(1, probe.histogram(LatencyProbe.Kind.SYNC).count());
+    }
+}
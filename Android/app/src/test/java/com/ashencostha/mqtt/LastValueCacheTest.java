@@ -0,0 +1,51 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class LastValueCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void valuesSurviveReload() throws Exception {
+        File file = new File(tmp.getRoot(), "last_values.bin");
+        LastValueCache cache = new LastValueCache(file, Runnable::run);
+
+        int[][] matrix = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        matrix[5][3] = 127;
+        assertTrue(cache.put(ConfigMQTT.topicStatus, ascii("PLAY_ALL")));
+        assertTrue(cache.put(ConfigMQTT.topicMatrixState, MatrixCodec.encodeBinary(matrix)));
+        assertFalse(cache.put(ConfigMQTT.topicStatus, ascii("PLAY_ALL")));
+
+        LastValueCache reloaded = new LastValueCache(file, Runnable::run);
+        reloaded.load();
+        assertArrayEquals(ascii("PLAY_ALL"), reloaded.get(ConfigMQTT.topicStatus));
+
+        int[][] decoded = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        assertTrue(MatrixCodec.decode(reloaded.get(ConfigMQTT.topicMatrixState), decoded));
+        assertArrayEquals(matrix, decoded);
+    }
+
+    @Test
+    public void corruptFileStartsEmpty() throws Exception {
+        File file = tmp.newFile("last_values.bin");
+        Files.write(file.toPath(), ascii("basura"));
+
+        LastValueCache cache = new LastValueCache(file, Runnable::run);
+        cache.load();
+        assertNull(cache.get(ConfigMQTT.topicStatus));
+    }
+}
@@ -0,0 +1,82 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    private static String[] buckets(LatencyHistogram histogram) throws IOException {
+        StringWriter out = new StringWriter();
+        histogram.dump(out);
+        return out.toString().split("\n");
+    }
+
+    @Test
+    public void smallValuesHaveExactBuckets() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-3);   // reloj que retrocede: va al 0
+        histogram.record(15);
+        histogram.record(16);
+        histogram.record(31);
+
+        String[] lines = buckets(histogram);
+        assertEquals("upper_us;count", lines[0]);
+        assertEquals("0;1", lines[1]);
+        assertEquals("15;1", lines[2]);
+        assertEquals("16;1", lines[3]);
+        assertEquals("31;1", lines[4]);
+    }
+
+    @Test
+    public void largerValuesShareLogLinearBuckets() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(32);
+        histogram.record(33);
+        histogram.record(34);
+
+        String[] lines = buckets(histogram);
+        assertEquals("33;2", lines[1]);
+        assertEquals("35;1", lines[2]);
+        // El percentil no pasa del máximo registrado
+        assertEquals(33, histogram.percentile(50));
+        assertEquals(34, histogram.percentile(100));
+    }
+
+    @Test
+    public void valuesPastTheRangeFallInTheLastBucket() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1L << 27);
+        histogram.record(1L << 28);
+        histogram.record(Long.MAX_VALUE / 2);
+
+        String[] lines = buckets(histogram);
+        assertEquals(((1L << 27) + (1L << 23) - 1) + ";1", lines[1]);
+        assertEquals(((1L << 28) - 1) + ";2", lines[2]);
+        assertEquals(3, lines.length);
+        assertEquals((1L << 28) - 1, histogram.percentile(100));
+    }
+
+    @Test
+    public void percentileRanksRoundUp() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(50));
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(5, histogram.percentile(50));
+        assertEquals(6, histogram.percentile(51));
+        assertEquals(10, histogram.percentile(99));
+        assertEquals(10, histogram.max());
+        assertEquals(5, histogram.mean());
+        assertEquals(10, histogram.count());
+
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+    }
+}
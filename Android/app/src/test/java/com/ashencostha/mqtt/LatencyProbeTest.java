@@ -0,0 +1,91 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LatencyProbeTest {
+
+    private long now = 1_000_000_000L;
+    private final LatencyProbe probe = new LatencyProbe(() -> now);
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private long count(LatencyProbe.Kind kind) {
+        return probe.histogram(kind).count();
+    }
+
+    @Test
+    public void pongCarriesItsOwnTimestamp() {
+        byte[] ping = probe.newPing();
+        now += 2_500_000;   // 2.5 ms
+        assertTrue(probe.onPong(ping));
+        assertEquals(1, count(LatencyProbe.Kind.PING));
+        assertEquals(2500, probe.histogram(LatencyProbe.Kind.PING).max());
+    }
+
+    @Test
+    public void malformedPongsAreIgnored() {
+        assertFalse(probe.onPong(ascii("P ")));
+        assertFalse(probe.onPong(ascii("X 123")));
+        assertFalse(probe.onPong(ascii("P123")));
+        assertFalse(probe.onPong(ascii("P 12a")));
+        assertFalse(probe.onPong(ascii("P -12")));
+        assertEquals(0, count(LatencyProbe.Kind.PING));
+    }
+
+    @Test
+    public void echoMatchesTheCommandOnceFromTheFirstSend() {
+        probe.commandSent(LatencyProbe.Kind.STATE, "PLAY_ALL");
+        now += 1_000_000;
+        // El mismo comando otra vez no agrega otro pendiente
+        probe.commandSent(LatencyProbe.Kind.STATE, "PLAY_ALL");
+        now += 1_000_000;
+
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.SYNC, "PLAY_ALL"));
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.STATE, "IDLE"));
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.STATE, "PLAY_ALL"));
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.STATE, "PLAY_ALL"));
+        assertEquals(1, count(LatencyProbe.Kind.STATE));
+        assertEquals(2000, probe.histogram(LatencyProbe.Kind.STATE).max());
+    }
+
+    @Test
+    public void echoIsComparedInsideThePayload() {
+        probe.commandSent(LatencyProbe.Kind.SYNC, "@12");
+        byte[] payload = ascii("xx@12yy");
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.SYNC, payload, 2, 4));
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.SYNC, payload, 2, 3));
+    }
+
+    @Test
+    public void commandsWithoutEchoExpire() {
+        probe.commandSent(LatencyProbe.Kind.STATE, "IDLE");
+        now += LatencyProbe.PENDING_TIMEOUT_NS + 1;
+        // Al anotar otro se descarta el vencido
+        probe.commandSent(LatencyProbe.Kind.STATE, "PLAY_ALL");
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.STATE, "IDLE"));
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.STATE, "PLAY_ALL"));
+    }
+
+    @Test
+    public void fullSlotsReuseTheOldest() {
+        for (int i = 0; i < LatencyProbe.MAX_PENDING; i++) {
+            probe.commandSent(LatencyProbe.Kind.SYNC, "@" + i);
+            now += 1000;
+        }
+        probe.commandSent(LatencyProbe.Kind.SYNC, "@new");
+        assertFalse(probe.echoReceived(LatencyProbe.Kind.SYNC, "@0"));
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.SYNC, "@1"));
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.SYNC, "@new"));
+
+        // Los slots que se liberan se vuelven a usar
+        probe.commandSent(LatencyProbe.Kind.SYNC, "@again");
+        assertTrue(probe.echoReceived(LatencyProbe.Kind.SYNC, "@again"));
+        assertEquals(3, count(LatencyProbe.Kind.SYNC));
+    }
+}
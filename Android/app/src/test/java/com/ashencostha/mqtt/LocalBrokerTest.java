@@ -0,0 +1,92 @@
+package com.ashencostha.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalBrokerTest {
+
+    private LocalBroker broker;
+    private MqttClient esp;
+    private MqttClient phone;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new LocalBroker(0);
+        broker.start();
+        esp = client("esp32_test");
+        phone = client("android_test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MqttClient c : new MqttClient[] { esp, phone }) {
+            if (c.isConnected()) {
+                c.disconnect();
+            }
+            c.close();
+        }
+        broker.stop();
+    }
+
+    private MqttClient client(String id) throws Exception {
+        MqttClient c = new MqttClient("tcp://127.0.0.1:" + broker.getPort(), id, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        c.connect(options);
+        return c;
+    }
+
+    private static BlockingQueue<String> listen(MqttClient c, String filter, int qos) throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        c.subscribe(filter, qos, (topic, message) ->
+                received.add(topic + "=" + new String(message.getPayload(), StandardCharsets.US_ASCII)));
+        return received;
+    }
+
+    @Test
+    public void routesEveryQosBetweenClients() throws Exception {
+        BlockingQueue<String> received = listen(esp, ConfigMQTT.topicState, 1);
+
+        for (int qos = 0; qos <= 2; qos++) {
+            phone.publish(ConfigMQTT.topicState, ("PLAY_ALL" + qos).getBytes(StandardCharsets.US_ASCII), qos, false);
+            assertEquals(ConfigMQTT.topicState + "=PLAY_ALL" + qos, received.poll(2, TimeUnit.SECONDS));
+        }
+        assertEquals(2, broker.clientCount());
+    }
+
+    @Test
+    public void retainedMessageReachesLateSubscriber() throws Exception {
+        MqttMessage status = new MqttMessage("IDLE".getBytes(StandardCharsets.US_ASCII));
+        status.setRetained(true);
+        esp.publish(ConfigMQTT.topicStatus, status);
+
+        BlockingQueue<String> received = listen(phone, "/simulator/+", 1);
+        assertEquals(ConfigMQTT.topicStatus + "=IDLE", received.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void wildcardMatching() {
+        assertTrue(LocalBroker.matches("/simulator/+", "/simulator/status"));
+        assertTrue(LocalBroker.matches("/simulator/#", "/simulator/status"));
+        assertTrue(LocalBroker.matches("/simulator/#", "/simulator"));
+        assertTrue(LocalBroker.matches("#", "/simulator/status"));
+        assertFalse(LocalBroker.matches("/simulator/+", "/simulator/a/b"));
+        assertFalse(LocalBroker.matches("/simulator/status", "/simulator/state"));
+
+        assertTrue(LocalBroker.isValidFilter("/seq/+/status"));
+        assertFalse(LocalBroker.isValidFilter("/seq/#/status"));
+        assertFalse(LocalBroker.isValidFilter("/seq/a+"));
+    }
+}
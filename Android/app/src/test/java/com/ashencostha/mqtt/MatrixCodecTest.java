@@ -0,0 +1,69 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MatrixCodecTest {
+
+    private static int[][] sampleMatrix() {
+        int[][] m = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        for (int i = 0; i < MatrixCodec.ROWS; i++) {
+            for (int j = 0; j < MatrixCodec.COLS; j++) {
+                m[i][j] = (i * 7 + j * 31) % (MatrixCodec.maxValue(j) + 1);
+            }
+        }
+        m[15][0] = 15;
+        m[15][3] = 127;
+        return m;
+    }
+
+    @Test
+    public void binary_roundTrip() {
+        int[][] m = sampleMatrix();
+        byte[] payload = MatrixCodec.encodeBinary(m);
+
+        assertEquals(MatrixCodec.BINARY_SIZE, payload.length);
+        assertTrue(MatrixCodec.isBinary(payload));
+
+        int[][] out = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        assertTrue(MatrixCodec.decode(payload, out));
+        assertArrayEquals(m, out);
+    }
+
+    @Test
+    public void text_roundTrip() {
+        int[][] m = sampleMatrix();
+        byte[] payload = MatrixCodec.encode(m, MatrixCodec.Format.TEXT);
+
+        assertFalse(MatrixCodec.isBinary(payload));
+
+        int[][] out = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        assertTrue(MatrixCodec.decode(payload, out));
+        assertArrayEquals(m, out);
+    }
+
+    @Test
+    public void text_shortOrInvalidValuesBecomeZero() {
+        int[][] out = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        out[5][1] = 99;
+
+        MatrixCodec.decode("  3\t7 x 12\n".getBytes(StandardCharsets.US_ASCII), out);
+
+        assertEquals(3, out[0][0]);
+        assertEquals(7, out[0][1]);
+        assertEquals(0, out[0][2]);
+        assertEquals(12, out[0][3]);
+        assertEquals(0, out[5][1]);
+    }
+
+    @Test
+    public void binary_rejectsUnknownVersion() {
+        byte[] payload = MatrixCodec.encodeBinary(sampleMatrix());
+        payload[0] = (byte) 0xB7;
+
+        assertFalse(MatrixCodec.decode(payload, new int[MatrixCodec.ROWS][MatrixCodec.COLS]));
+    }
+}
@@ -0,0 +1,116 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MatrixSyncTest {
+
+    private String lastTopic;
+    private byte[] lastPayload;
+
+    private final MatrixSync sync = new MatrixSync((topic, payload) -> {
+        lastTopic = topic;
+        lastPayload = payload;
+    });
+
+    private final int[][] matrix = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void firstSync_sendsVersionedSnapshot() {
+        matrix[2][1] = 64;
+        sync.markChanged(2, 1);
+
+        assertTrue(sync.sync(matrix, MatrixCodec.Format.TEXT));
+        assertEquals(ConfigMQTT.topicSendMatrix, lastTopic);
+        assertEquals(1, MatrixSync.versionOf(lastPayload));
+
+        int[][] decoded = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        assertTrue(MatrixCodec.decode(lastPayload, MatrixSync.bodyOffset(lastPayload), decoded));
+        assertArrayEquals(matrix, decoded);
+    }
+
+    @Test
+    public void afterAck_sendsOnlyChangedCells() {
+        sync.markChanged(0, 0);
+        sync.sync(matrix, MatrixCodec.Format.TEXT);
+        assertFalse(sync.onPeerVersion(1));
+        assertTrue(sync.isInSync());
+        assertFalse(sync.sync(matrix, MatrixCodec.Format.TEXT));
+
+        matrix[3][2] = 99;
+        sync.markChanged(3, 2);
+        sync.markChanged(3, 2);
+
+        assertTrue(sync.sync(matrix, MatrixCodec.Format.TEXT));
+        assertEquals(ConfigMQTT.topicEdit, lastTopic);
+        assertEquals("@1:3;3 2 99", new String(lastPayload, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void divergentAck_requestsFullSnapshot() {
+        sync.markChanged(0, 0);
+        sync.sync(matrix, MatrixCodec.Format.BINARY);
+
+        assertTrue(sync.onPeerVersion(7));
+        assertEquals(MatrixSync.NO_VERSION, sync.getAckedVersion());
+
+        sync.forceSnapshot(matrix, MatrixCodec.Format.BINARY);
+        assertEquals(ConfigMQTT.topicSendMatrix, lastTopic);
+        assertTrue(MatrixCodec.isBinary(lastPayload, MatrixSync.bodyOffset(lastPayload)));
+    }
+
+    @Test
+    public void otherDevice_getsAFullSnapshotOnItsOwnTopics() {
+        sync.markChanged(0, 0);
+        sync.sync(matrix, MatrixCodec.Format.TEXT);
+        sync.onPeerVersion(1);
+
+        SequencerDevice bajo = new SequencerDevice("bajo");
+        sync.setDevice(bajo);
+        assertEquals(MatrixSync.NO_VERSION, sync.getAckedVersion());
+        assertTrue(sync.sync(matrix, MatrixCodec.Format.TEXT));
+        assertEquals(bajo.topicSendMatrix, lastTopic);
+
+        sync.onPeerVersion(1);
+        matrix[1][1] = 5;
+        sync.markChanged(1, 1);
+        sync.sync(matrix, MatrixCodec.Format.TEXT);
+        assertEquals(bajo.topicEdit, lastTopic);
+    }
+
+    @Test
+    public void boundMatrix_sendsWhatChangedAndIgnoresPeerWrites() {
+        SequencerMatrix bound = new SequencerMatrix();
+        sync.bind(bound);
+        bound.set(0, 0, 1);
+        assertTrue(sync.sync(MatrixCodec.Format.TEXT));
+        assertFalse(sync.onPeerVersion(1));
+
+        // Lo que llega del ESP no vuelve como cambio local
+        bound.set(sync.consumer(), 5, 1, 70);
+        assertTrue(sync.isInSync());
+
+        bound.set(3, 2, 99);
+        bound.set(3, 3, 98);
+        assertEquals(2, sync.pendingCells());
+        assertTrue(sync.sync(MatrixCodec.Format.TEXT));
+        assertEquals("@1:2;3 2 99;3 3 98", new String(lastPayload, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void envelopeParsing() {
+        assertTrue(MatrixSync.isAck(ascii("@42")));
+        assertFalse(MatrixSync.isAck(ascii("@42 1 2 3")));
+        assertEquals(42, MatrixSync.versionOf(ascii("@42 1 2 3")));
+        assertEquals(4, MatrixSync.bodyOffset(ascii("@42 1 2 3")));
+        assertEquals(MatrixSync.NO_VERSION, MatrixSync.versionOf(ascii("1 2 3")));
+        assertEquals(0, MatrixSync.bodyOffset(ascii("1 2 3")));
+    }
+}
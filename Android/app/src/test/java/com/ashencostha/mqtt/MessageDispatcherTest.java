@@ -0,0 +1,67 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageDispatcherTest {
+
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private final List<String> received = new ArrayList<>();
+
+    private MessageDispatcher.Subscription listen(String filter) {
+        return dispatcher.subscribe(filter, MessageDispatcher.ASCII, MessageDispatcher.DIRECT,
+                (topic, message) -> received.add(filter + " <- " + topic + "=" + message));
+    }
+
+    private boolean send(String topic, String message) {
+        return dispatcher.dispatch(topic, message.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void routesExactAndWildcardFilters() {
+        listen("/simulator/status");
+        listen("/simulator/+/status");
+        listen("/simulator/#");
+
+        assertTrue(send("/simulator/status", "IDLE"));
+        assertTrue(send("/simulator/bajo/status", "PLAY_ALL"));
+
+        assertTrue(received.contains("/simulator/status <- /simulator/status=IDLE"));
+        assertTrue(received.contains("/simulator/# <- /simulator/status=IDLE"));
+        assertTrue(received.contains("/simulator/+/status <- /simulator/bajo/status=PLAY_ALL"));
+        assertTrue(received.contains("/simulator/# <- /simulator/bajo/status=PLAY_ALL"));
+        assertEquals(4, received.size());
+    }
+
+    @Test
+    public void hashAlsoMatchesParentLevel() {
+        listen("/simulator/#");
+        assertTrue(send("/simulator", "x"));
+        assertFalse(send("/otro/status", "x"));
+    }
+
+    @Test
+    public void systemTopicsSkipLeadingWildcards() {
+        listen("#");
+        listen("$SYS/+");
+        assertTrue(send("$SYS/uptime", "1"));
+        assertEquals(1, received.size());
+        assertEquals("$SYS/+ <- $SYS/uptime=1", received.get(0));
+    }
+
+    @Test
+    public void cancelInvalidatesCachedRoute() {
+        MessageDispatcher.Subscription sub = listen("/simulator/+");
+        assertTrue(send("/simulator/pong", "P 1"));
+
+        sub.cancel();
+        assertFalse(send("/simulator/pong", "P 2"));
+        assertFalse(dispatcher.hasListeners("/simulator/pong"));
+        assertEquals(1, received.size());
+    }
+}
@@ -0,0 +1,53 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SequencerDeviceTest {
+
+    @Test
+    public void mainDeviceKeepsLegacyTopics() {
+        ConfigMQTT.useServerSequencer();
+        SequencerDevice main = SequencerDevice.MAIN;
+        assertEquals(ConfigMQTT.topicStatus, main.topicStatus);
+        assertEquals(ConfigMQTT.topicState, main.topicState);
+        assertEquals(ConfigMQTT.topicSendMatrix, main.topicSendMatrix);
+        assertEquals(ConfigMQTT.topicReceiveMatrix, main.topicReceiveMatrix);
+        assertEquals(ConfigMQTT.topicMatrixState, main.topicMatrixState);
+    }
+
+    @Test
+    public void otherDevicesGetTheirOwnNamespace() {
+        SequencerDevice b = new SequencerDevice("bajo");
+        assertEquals("/simulator/bajo/status", b.topicStatus);
+        assertEquals("/simulator/bajo/edit", b.topicEdit);
+        assertEquals("/simulator/all/state", SequencerDevice.ALL.topicState);
+    }
+
+    @Test
+    public void validatesIds() {
+        assertTrue(SequencerDevice.isValidId("seq_2"));
+        assertFalse(SequencerDevice.isValidId(""));
+        assertFalse(SequencerDevice.isValidId("all"));
+        assertFalse(SequencerDevice.isValidId("a/b"));
+        assertFalse(SequencerDevice.isValidId("Bajo"));
+    }
+
+    @Test
+    public void matrixFormatIsPerDevice() {
+        SequencerDevice b = new SequencerDevice("bajo");
+        assertEquals(MatrixCodec.Format.TEXT, b.getMatrixFormat());
+
+        SequencerDevice binary = b.withMatrixFormat(MatrixCodec.Format.BINARY);
+        assertEquals(MatrixCodec.Format.BINARY, binary.getMatrixFormat());
+        assertEquals(b, binary);
+        assertEquals(b.topicSendMatrix, binary.topicSendMatrix);
+        assertEquals(MatrixCodec.Format.TEXT, b.getMatrixFormat());
+        assertSame(binary, binary.withMatrixFormat(MatrixCodec.Format.BINARY));
+
+        // Reconectar no pisa el formato de nadie
+        ConfigMQTT.useServerSequencer();
+        assertEquals(MatrixCodec.Format.BINARY, binary.getMatrixFormat());
+    }
+}
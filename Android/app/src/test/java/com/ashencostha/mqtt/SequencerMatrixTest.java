@@ -0,0 +1,64 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SequencerMatrixTest {
+
+    @Test
+    public void enforcesColumnRanges() {
+        SequencerMatrix matrix = new SequencerMatrix();
+        assertTrue(matrix.set(0, 0, 15));
+        assertTrue(matrix.set(0, 3, 127));
+        assertFalse(matrix.set(0, 3, 127));
+        assertFalse(SequencerMatrix.isValid(0, 16));
+        assertFalse(SequencerMatrix.isValid(1, -1));
+        try {
+            matrix.set(5, 0, 16);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            assertEquals(0, matrix.get(5, 0));
+        }
+    }
+
+    @Test
+    public void eachConsumerDrainsItsOwnChanges() {
+        SequencerMatrix matrix = new SequencerMatrix();
+        int ui = matrix.addConsumer();
+        int sync = matrix.addConsumer();
+
+        matrix.set(ui, 2, 1, 64);   // tipeado en la grilla: la grilla ya lo tiene
+        matrix.set(15, 3, 1);
+        assertEquals(1L << SequencerMatrix.cell(15, 3), matrix.drain(ui));
+        assertEquals(0, matrix.drain(ui));
+
+        long bits = matrix.drain(sync);
+        assertEquals(2, Long.bitCount(bits));
+        assertTrue((bits & (1L << SequencerMatrix.cell(2, 1))) != 0);
+        assertFalse(matrix.isDirty(sync));
+    }
+
+    @Test
+    public void bulkCopiesMarkOnlyWhatChangedAndClamp() {
+        SequencerMatrix matrix = new SequencerMatrix();
+        int ui = matrix.addConsumer();
+        int[][] values = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        values[4][0] = 99;    // se lleva a 15
+        values[4][2] = 10;
+        assertEquals(2, matrix.copyFrom(SequencerMatrix.NO_CONSUMER, values));
+        assertEquals(15, matrix.get(4, 0));
+        matrix.drain(ui);
+
+        assertEquals(0, matrix.copyFrom(SequencerMatrix.NO_CONSUMER, matrix.toArray()));
+        assertFalse(matrix.isDirty(ui));
+
+        byte[] text = "0 0 0 1".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(matrix.decode(SequencerMatrix.NO_CONSUMER, text, 0));
+        assertEquals(1, matrix.get(0, 3));
+        // Las de la fila 4 volvieron a 0 y la (0, 3) pasó a 1
+        assertEquals(3, Long.bitCount(matrix.drain(ui)));
+    }
+}
@@ -0,0 +1,52 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ashencostha.mqtt.SongFixtures.matrix;
+import static org.junit.Assert.*;
+
+public class SongArchiveTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private SongStore openStore(String name) throws Exception {
+        return SongFixtures.openStore(new File(tmp.getRoot(), name));
+    }
+
+    @Test
+    public void roundTripsAndSkipsWhatIsAlreadyThere() throws Exception {
+        SongStore phone = openStore("phone");
+        for (int i = 0; i < 100; i++) {
+            phone.insert("song " + i, matrix(i % 10));
+        }
+        List<int[]> progress = new ArrayList<>();
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(100, SongArchive.write(phone, archive,
+                (done, total) -> progress.add(new int[]{done, total})));
+        assertArrayEquals(new int[]{100, 100}, progress.get(progress.size() - 1));
+
+        SongStore other = openStore("other");
+        other.insert("song 3", matrix(3));
+        assertEquals(99, SongArchive.read(other,
+                new ByteArrayInputStream(archive.toByteArray()), null));
+        assertEquals(100, other.count());
+        assertEquals(10, other.distinctMatrices());
+        SongInfo last = other.page(99, 1).get(0);
+        assertEquals("song 99", last.getName());
+        assertArrayEquals(matrix(9), other.load(last.getId()).getMatrix());
+
+        // El mismo backup otra vez no agrega nada
+        assertEquals(0, SongArchive.read(other,
+                new ByteArrayInputStream(archive.toByteArray()), null));
+        assertEquals(100, other.count());
+    }
+}
@@ -0,0 +1,64 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static com.ashencostha.mqtt.SongFixtures.matrix;
+import static org.junit.Assert.*;
+
+public class SongBankTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int store(SongBank bank, int[][] matrix) throws Exception {
+        byte[] packed = MatrixCodec.encodeBinary(matrix);
+        return bank.store(SongBank.keyOf(packed), packed);
+    }
+
+    @Test
+    public void growsAndReadsAnySlotAfterReopen() throws Exception {
+        File file = new File(tmp.getRoot(), "songs.bank");
+        SongBank bank = new SongBank(file);
+        bank.open();
+        int initial = bank.capacity();
+        int[] slots = new int[initial + 10];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = store(bank, matrix(i));
+            bank.nextId();
+        }
+        assertTrue(bank.capacity() > initial);
+        bank.free(slots[3]);
+        bank.close();
+
+        assertEquals(SongBank.HEADER_SIZE + (long) initial * 2 * SongBank.RECORD_SIZE, file.length());
+
+        SongBank reopened = new SongBank(file);
+        reopened.open();
+        assertEquals(slots.length - 1, reopened.usedSlots());
+        assertEquals(slots.length + 1, reopened.nextId());
+
+        int[][] read = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        assertTrue(reopened.read(slots[initial + 5], read));
+        assertArrayEquals(matrix(initial + 5), read);
+        assertFalse(reopened.read(slots[3], read));
+        assertEquals(slots[initial + 5], reopened.slotOf(SongBank.keyOf(matrix(initial + 5))));
+        assertEquals(-1, reopened.slotOf(SongBank.keyOf(matrix(3))));
+
+        // El slot liberado se reusa antes de crecer
+        assertEquals(slots[3], store(reopened, matrix(1000)));
+    }
+
+    @Test
+    public void sameMatrixIsStoredOnce() throws Exception {
+        SongBank bank = new SongBank(new File(tmp.getRoot(), "songs.bank"));
+        bank.open();
+        int slot = store(bank, matrix(7));
+        assertEquals(slot, store(bank, matrix(7)));
+        assertEquals(1, bank.usedSlots());
+        assertEquals(SongBank.keyOf(matrix(7)), bank.keyAt(slot));
+    }
+}
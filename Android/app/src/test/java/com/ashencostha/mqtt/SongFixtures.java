@@ -0,0 +1,28 @@
+package com.ashencostha.mqtt;
+
+import java.io.File;
+
+// Lo que comparten los tests del banco, el store y el backup
+final class SongFixtures {
+
+    private SongFixtures() {
+    }
+
+    // Una matriz válida distinta para cada seed entre 0 y 127
+    static int[][] matrix(int seed) {
+        int[][] m = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        for (int i = 0; i < MatrixCodec.ROWS; i++) {
+            for (int j = 0; j < MatrixCodec.COLS; j++) {
+                m[i][j] = (seed + i * 7 + j) % (MatrixCodec.maxValue(j) + 1);
+            }
+        }
+        return m;
+    }
+
+    // Store abierto que escribe en el mismo hilo (cada tanda baja enseguida)
+    static SongStore openStore(File dir) throws Exception {
+        SongStore store = new SongStore(dir, Runnable::run);
+        store.open();
+        return store;
+    }
+}
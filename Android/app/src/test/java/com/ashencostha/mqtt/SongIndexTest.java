@@ -0,0 +1,55 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SongIndexTest {
+
+    private static SongIndex sample() {
+        SongIndex index = new SongIndex();
+        index.add(1, "Mi estribillo");
+        index.add(2, "Canción de cuna");
+        index.add(3, "Estrofa final");
+        index.add(4, "canción 4");
+        return index;
+    }
+
+    @Test
+    public void matchesWordPrefixesIgnoringCaseAndAccents() {
+        SongIndex index = sample();
+        assertEquals(Arrays.asList(1L, 3L), index.search("ESTR", 10));
+        assertEquals(Arrays.asList(2L, 4L), index.search("cancion", 10));
+        assertEquals(Collections.singletonList(1L), index.search("mi est", 10));
+        assertEquals(Collections.singletonList(2L), index.search("cuna canc", 10));
+        assertTrue(index.search("ribillo", 10).isEmpty());
+        assertTrue(index.search("  ", 10).isEmpty());
+        assertEquals(Collections.singletonList(1L), index.search("e", 1));
+    }
+
+    @Test
+    public void removeDropsOnlyThatSong() {
+        SongIndex index = sample();
+        index.remove(2, "Canción de cuna");
+        assertEquals(Collections.singletonList(4L), index.search("canc", 10));
+        assertTrue(index.search("cuna", 10).isEmpty());
+    }
+
+    @Test
+    public void roundTripsThroughTheFileFormat() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sample().writeTo(new DataOutputStream(bytes));
+
+        SongIndex read = new SongIndex();
+        read.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(sample().wordCount(), read.wordCount());
+        assertEquals(Arrays.asList(1L, 3L), read.search("estr", 10));
+    }
+}
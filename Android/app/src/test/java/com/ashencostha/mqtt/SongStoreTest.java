@@ -0,0 +1,278 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ashencostha.mqtt.SongFixtures.matrix;
+import static org.junit.Assert.*;
+
+public class SongStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private SongStore openStore() throws Exception {
+        return SongFixtures.openStore(new File(tmp.getRoot(), "songs"));
+    }
+
+    @Test
+    public void insertLoadAndDeleteOneSong() throws Exception {
+        SongStore store = openStore();
+        long a = store.insert("Intro", matrix(1));
+        long b = store.insert("Estribillo", matrix(2));
+        assertNotEquals(a, b);
+
+        Song loaded = store.load(b);
+        assertEquals("Estribillo", loaded.getName());
+        assertEquals(b, loaded.getId());
+        assertArrayEquals(matrix(2), loaded.getMatrix());
+
+        assertTrue(store.delete(a));
+        assertNull(store.load(a));
+        assertEquals(1, store.count());
+    }
+
+    @Test
+    public void reopenKeepsOrderAndDoesNotReuseIds() throws Exception {
+        SongStore store = openStore();
+        store.insert("a", matrix(1));
+        long b = store.insert("b", matrix(2));
+
+        SongStore reopened = openStore();
+        long c = reopened.insert("c", matrix(3));
+        assertTrue(c > b);
+
+        List<SongInfo> songs = reopened.page(0, 10);
+        assertEquals(3, songs.size());
+        assertEquals("a", songs.get(0).getName());
+        assertEquals("c", songs.get(2).getName());
+    }
+
+    @Test
+    public void pagesListMetadataInOrder() throws Exception {
+        SongStore store = openStore();
+        for (int i = 0; i < 25; i++) {
+            store.insert("song " + i, matrix(i));
+        }
+        assertEquals(10, store.page(0, 10).size());
+        assertEquals(5, store.page(20, 10).size());
+        assertEquals("song 20", store.page(20, 10).get(0).getName());
+        assertTrue(store.page(25, 10).isEmpty());
+    }
+
+    @Test
+    public void songsInTheBankSurviveLosingTheCatalog() throws Exception {
+        SongStore store = openStore();
+        long a = store.insert("a", matrix(1));
+        long b = store.insert("b", matrix(2));
+        store.delete(a);
+        store.close();
+
+        // Sin catálogo se pierden los nombres, pero no las matrices
+        assertTrue(new File(new File(tmp.getRoot(), "songs"), "catalog.bin").delete());
+        SongStore reopened = openStore();
+        assertEquals(1, reopened.count());
+        SongInfo recovered = reopened.page(0, 1).get(0);
+        assertTrue(recovered.getId() > b);
+        assertEquals("Canción " + recovered.getId(), recovered.getName());
+        assertArrayEquals(matrix(2), reopened.load(recovered.getId()).getMatrix());
+    }
+
+    @Test
+    public void sameMatrixIsSharedUntilTheLastSongGoes() throws Exception {
+        SongStore store = openStore();
+        long a = store.insert("original", matrix(3));
+        long b = store.insert("copia", matrix(3));
+        store.insert("otra", matrix(4));
+        assertEquals(2, store.distinctMatrices());
+        assertEquals(a, store.findByContent(matrix(3)).getId());
+        assertNull(store.findByContent(matrix(5)));
+
+        store.delete(a);
+        store.close();
+        SongStore reopened = openStore();
+        assertEquals(b, reopened.findByContent(matrix(3)).getId());
+        assertArrayEquals(matrix(3), reopened.load(b).getMatrix());
+
+        reopened.delete(b);
+        reopened.close();
+        SongStore last = openStore();
+        assertEquals(1, last.count());
+        assertNull(last.findByContent(matrix(3)));
+    }
+
+    @Test
+    public void hashCollisionTakesTheNextKey() throws Exception {
+        // Otra matriz ya ocupa la clave de matrix(2), como si sus hashes chocaran
+        File dir = new File(tmp.getRoot(), "songs");
+        assertTrue(dir.mkdirs());
+        SongBank bank = new SongBank(new File(dir, "songs.bank"));
+        bank.open();
+        long key = SongBank.keyOf(matrix(2));
+        bank.store(key, MatrixCodec.encodeBinary(matrix(1)));
+        bank.close();
+
+        SongStore store = openStore();
+        long id = store.insert("b", matrix(2));
+        assertEquals(SongBank.nextKey(key), store.info(id).getContent());
+        assertEquals(id, store.findByContent(matrix(2)).getId());
+        store.close();
+
+        SongStore reopened = openStore();
+        assertArrayEquals(matrix(2), reopened.load(id).getMatrix());
+        assertEquals(id, reopened.findByContent(matrix(2)).getId());
+        assertEquals(2, reopened.distinctMatrices());
+    }
+
+    @Test
+    public void loadMatrixCopiesFromTheDecodedCache() throws Exception {
+        SongStore store = openStore();
+        long id = store.insert("a", matrix(5));
+
+        int[][] into = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        assertTrue(store.loadMatrix(id, into));
+        assertArrayEquals(matrix(5), into);
+
+        // Editar la copia no toca lo guardado
+        into[0][1] = 99;
+        assertArrayEquals(matrix(5), store.load(id).getMatrix());
+
+        store.delete(id);
+        assertFalse(store.loadMatrix(id, into));
+    }
+
+    @Test
+    public void writesBehindAndMergesSaveThenDelete() throws Exception {
+        // Executor que junta las tareas hasta que el test las corre
+        List<Runnable> queued = new ArrayList<>();
+        File dir = new File(tmp.getRoot(), "songs");
+        SongStore store = new SongStore(dir, queued::add);
+        store.open();
+
+        long kept = store.insert("queda", matrix(1));
+        long dropped = store.insert("se va", matrix(2));
+        assertTrue(store.delete(dropped));
+        assertEquals(1, queued.size());
+
+        // Las lecturas ven lo pendiente antes de que llegue al disco
+        assertEquals(1, store.count());
+        assertArrayEquals(matrix(1), store.load(kept).getMatrix());
+
+        queued.get(0).run();
+        SongStore reopened = openStore();
+        assertEquals(1, reopened.count());
+        assertEquals("queda", reopened.info(kept).getName());
+        assertArrayEquals(matrix(1), reopened.load(kept).getMatrix());
+    }
+
+    @Test
+    public void failedFlushStaysQueuedAndIsReported() throws Exception {
+        File dir = new File(tmp.getRoot(), "songs");
+        SongStore store = SongFixtures.openStore(dir);
+        List<Integer> attempts = new ArrayList<>();
+        store.setFailureListener(Runnable::run, (error, attempt) -> attempts.add(attempt));
+
+        // Un directorio en lugar del catálogo: la tanda no se puede escribir
+        File catalog = new File(dir, "catalog.bin");
+        assertTrue(catalog.delete() && catalog.mkdir());
+        long a = store.insert("a", matrix(1));
+        long b = store.insert("b", matrix(2));
+        assertEquals(2, attempts.size());
+        assertEquals(Integer.valueOf(2), attempts.get(1));
+        assertEquals(2, store.count());
+
+        // Se arregla el disco: la próxima tanda baja todo lo que había fallado
+        assertTrue(catalog.delete());
+        store.flush();
+        store.close();
+
+        SongStore reopened = openStore();
+        assertEquals(2, reopened.count());
+        assertEquals("a", reopened.info(a).getName());
+        assertArrayEquals(matrix(2), reopened.load(b).getMatrix());
+    }
+
+    @Test
+    public void searchSeesPendingChangesAndSurvivesReopen() throws Exception {
+        SongStore store = openStore();
+        long a = store.insert("Estribillo", matrix(1));
+        long b = store.insert("Estrofa", matrix(2));
+        store.insert("Puente", matrix(3));
+        store.delete(a);
+        assertEquals(1, store.search("estr", 10).size());
+        store.close();
+        assertTrue(new File(new File(tmp.getRoot(), "songs"), "names.idx").exists());
+
+        SongStore reopened = openStore();
+        assertEquals(b, reopened.search("ESTR", 10).get(0).getId());
+        long c = reopened.insert("Estrella", matrix(4));
+        assertEquals(2, reopened.search("estr", 10).size());
+
+        // Índice viejo (se perdió la última tanda): se rearma desde el catálogo
+        File dir = new File(tmp.getRoot(), "songs");
+        reopened.close();
+        assertTrue(new File(dir, "names.idx").delete());
+        SongStore rebuilt = openStore();
+        assertEquals(c, rebuilt.search("estre", 10).get(0).getId());
+    }
+
+    @Test
+    public void indexSnapshotIsOnlyWrittenOnCompactionAndReplaysTheCatalog() throws Exception {
+        File dir = new File(tmp.getRoot(), "songs");
+        File idx = new File(dir, "names.idx");
+        SongStore store = openStore();
+        store.insert("Intro", matrix(1));
+        store.close();
+        long snapshot = idx.length();
+        assertTrue(snapshot > 0);
+
+        // Las tandas no tocan la foto: lo nuevo está sólo en el catálogo
+        SongStore reopened = openStore();
+        long a = reopened.insert("Estribillo", matrix(2));
+        long b = reopened.insert("Estrofa", matrix(3));
+        reopened.delete(a);
+        assertEquals(snapshot, idx.length());
+
+        // Sin close(): se carga la foto y se le aplica lo que vino después
+        SongStore again = openStore();
+        assertTrue(again.search("estribillo", 10).isEmpty());
+        assertEquals(b, again.search("estr", 10).get(0).getId());
+        assertEquals(1, again.search("intro", 10).size());
+    }
+
+    @Test
+    public void importsLegacySongListJson() throws Exception {
+        SongStore store = openStore();
+        // Como lo guardaba Gson por reflexión, con un null y una sin matriz
+        String legacy = "[{\"name\":\"Vieja\",\"matrix\":" + SongJson.GSON.toJson(matrix(4)) + "},"
+                + "null,{\"name\":\"Sin matriz\"}]";
+        assertEquals(1, store.importFrom(new StringReader(legacy)));
+
+        SongInfo info = store.page(0, 1).get(0);
+        assertEquals("Vieja", info.getName());
+        assertArrayEquals(matrix(4), store.load(info.getId()).getMatrix());
+    }
+
+    @Test
+    public void exportStreamsBackIntoAnotherStore() throws Exception {
+        SongStore store = openStore();
+        for (int i = 0; i < 5; i++) {
+            store.insert("song " + i, matrix(i));
+        }
+        StringWriter json = new StringWriter();
+        assertEquals(5, store.exportTo(json));
+
+        SongStore other = SongFixtures.openStore(new File(tmp.getRoot(), "other"));
+        assertEquals(5, other.importFrom(new StringReader(json.toString())));
+        SongInfo last = other.page(4, 1).get(0);
+        assertEquals("song 4", last.getName());
+        assertArrayEquals(matrix(4), other.load(last.getId()).getMatrix());
+    }
+}
@@ -0,0 +1,71 @@
+package com.ashencostha.mqtt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TraceBufferTest {
+
+    private static String[] lines(TraceBuffer trace) throws IOException {
+        StringWriter out = new StringWriter();
+        trace.dump(out);
+        return out.toString().split("\n");
+    }
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(8, new TraceBuffer(5).capacity());
+        assertEquals(16, new TraceBuffer(16).capacity());
+    }
+
+    @Test
+    public void dumpResolvesTopicsAndStatus() throws IOException {
+        TraceBuffer trace = new TraceBuffer(8);
+        int topic = trace.topicId("/simulator/state");
+        assertEquals(topic, trace.topicId("/simulator/state"));
+
+        trace.record(TraceBuffer.PUBLISH, topic, 8);
+        trace.record(TraceBuffer.ESP_STATUS, EspStatus.PLAY_ALL.ordinal(), 0);
+
+        String[] lines = lines(trace);
+        assertEquals("t_ms;event;a;b", lines[0]);
+        assertTrue(lines[1].endsWith(";PUBLISH;/simulator/state;8"));
+        assertTrue(lines[2].endsWith(";ESP_STATUS;PLAY_ALL;0"));
+        assertEquals("0;/simulator/state", lines[lines.length - 1]);
+    }
+
+    @Test
+    public void keepsOnlyTheNewestRecordsWhenFull() throws IOException {
+        TraceBuffer trace = new TraceBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            trace.record(TraceBuffer.SENSOR, TraceBuffer.SENSOR_GYRO, i);
+        }
+        assertEquals(10, trace.written());
+
+        String[] lines = lines(trace);
+        assertTrue(lines[1].endsWith(";SENSOR;1;6"));
+        assertTrue(lines[4].endsWith(";SENSOR;1;9"));
+        assertEquals("", lines[5]);
+    }
+
+    @Test
+    public void concurrentWritersDoNotLoseCount() throws InterruptedException {
+        TraceBuffer trace = new TraceBuffer(64);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    trace.record(TraceBuffer.RECEIVE, 0, i);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(4000, trace.written());
+    }
+}
@@ -0,0 +1,33 @@
+package com.ashencostha.mqtt.benchmark;
+
+import com.ashencostha.mqtt.MatrixCodec;
+import com.ashencostha.mqtt.Song;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+// Datos de prueba con semilla fija, para que las corridas sean comparables.
+final class Matrices {
+
+    private Matrices() {
+    }
+
+    static int[][] random(Random rnd) {
+        int[][] m = new int[MatrixCodec.ROWS][MatrixCodec.COLS];
+        for (int i = 0; i < MatrixCodec.ROWS; i++) {
+            for (int j = 0; j < MatrixCodec.COLS; j++) {
+                m[i][j] = rnd.nextInt(MatrixCodec.maxValue(j) + 1);
+            }
+        }
+        return m;
+    }
+
+    static ArrayList<Song> library(int size) {
+        Random rnd = new Random(42);
+        ArrayList<Song> songs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            songs.add(new Song("Cancion " + i, random(rnd)));
+        }
+        return songs;
+    }
+}
@@ -0,0 +1,117 @@
+package com.ashencostha.mqtt.benchmark;
+
+import com.ashencostha.mqtt.MatrixCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Codificar / decodificar la matriz de 16x4 que viaja por /simulator/getcell
+// y /simulator/cellval.
+//
+//   legacy*: lo que hacían sendMatrixAsString() y updateMatrixFromString()
+//            (StringBuilder + split("\\s+") + parseInt), como referencia
+//   text*  : MatrixCodec en formato texto (mismo wire format, sin split)
+//   binary*: MatrixCodec en formato binario (51 bytes)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class MatrixCodecBenchmark {
+
+    private static final int ROWS = MatrixCodec.ROWS;
+    private static final int COLS = MatrixCodec.COLS;
+
+    private int[][] matrix;
+    private int[][] into;
+    private String textString;
+    private byte[] textPayload;
+    private byte[] binaryPayload;
+
+    @Setup
+    public void setup() {
+        matrix = Matrices.random(new Random(42));
+        into = new int[ROWS][COLS];
+        textString = MatrixCodec.encodeText(matrix);
+        textPayload = textString.getBytes(StandardCharsets.US_ASCII);
+        binaryPayload = MatrixCodec.encodeBinary(matrix);
+    }
+
+    // ============================
+    //   ENCODE
+    // ============================
+
+    @Benchmark
+    public byte[] legacyEncode() {
+        StringBuilder matrixString = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                matrixString.append(matrix[i][j]);
+                if (i < ROWS - 1 || j < COLS - 1) {
+                    matrixString.append(" ");
+                }
+            }
+        }
+        // publishMessage() hacía getBytes() sobre el String
+        return matrixString.toString().getBytes();
+    }
+
+    @Benchmark
+    public byte[] textEncode() {
+        return MatrixCodec.encode(matrix, MatrixCodec.Format.TEXT);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return MatrixCodec.encode(matrix, MatrixCodec.Format.BINARY);
+    }
+
+    // ============================
+    //   DECODE
+    // ============================
+
+    @Benchmark
+    public int[][] legacyDecode() {
+        // El receiver armaba el String a partir del payload antes de parsear
+        String message = new String(textPayload);
+        String[] values = message.trim().split("\\s+");
+        int valueIndex = 0;
+
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                if (valueIndex < values.length) {
+                    try {
+                        into[i][j] = Integer.parseInt(values[valueIndex]);
+                        valueIndex++;
+                    } catch (NumberFormatException e) {
+                        into[i][j] = 0;
+                    }
+                } else {
+                    into[i][j] = 0;
+                }
+            }
+        }
+        return into;
+    }
+
+    @Benchmark
+    public int[][] textDecode() {
+        MatrixCodec.decode(textPayload, into);
+        return into;
+    }
+
+    @Benchmark
+    public int[][] binaryDecode() {
+        MatrixCodec.decode(binaryPayload, into);
+        return into;
+    }
+}
@@ -0,0 +1,91 @@
+package com.ashencostha.mqtt.benchmark;
+
+import com.ashencostha.mqtt.Song;
+import com.ashencostha.mqtt.SongJson;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// La biblioteca de canciones como la guardan saveSong() y
+// SavedSongsActivity: toda la lista en un solo JSON dentro de
+// SharedPreferences ("SongListJSON"). Cada guardado re-serializa la lista
+// entera y cada apertura la parsea entera, así que el costo crece con la
+// cantidad de canciones.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class SongLibraryBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int librarySize;
+
+    private ArrayList<Song> songs;
+    private String json;
+
+    @Setup
+    public void setup() {
+        songs = Matrices.library(librarySize);
+        json = new Gson().toJson(songs);
+    }
+
+    // saveSongsToPrefs(): Gson nuevo en cada llamada
+    @Benchmark
+    public String saveList() {
+        Gson gson = new Gson();
+        return gson.toJson(songs);
+    }
+
+    // loadSongsFromPrefs(): Gson y TypeToken nuevos en cada llamada
+    @Benchmark
+    public ArrayList<Song> loadList() {
+        Gson gson = new Gson();
+        Type type = new TypeToken<ArrayList<Song>>() {}.getType();
+        return gson.fromJson(json, type);
+    }
+
+    // saveSong() en MainActivity: cargar, agregar una y volver a guardar
+    @Benchmark
+    public String appendOne() {
+        Gson gson = new Gson();
+        Type type = new TypeToken<ArrayList<Song>>() {}.getType();
+        ArrayList<Song> list = gson.fromJson(json, type);
+        list.add(songs.get(0));
+        return gson.toJson(list);
+    }
+
+    // SongJson: TypeAdapters a mano sobre el stream, de a una canción
+    @Benchmark
+    public String streamingSave() throws IOException {
+        StringWriter out = new StringWriter();
+        try (SongJson.ArrayWriter writer = new SongJson.ArrayWriter(out)) {
+            for (Song song : songs) {
+                writer.write(song);
+            }
+        }
+        return out.toString();
+    }
+
+    @Benchmark
+    public int streamingLoad() throws IOException {
+        int[] cells = new int[1];
+        SongJson.readArray(new StringReader(json), song -> cells[0] += song.getMatrix()[0][0]);
+        return cells[0];
+    }
+}
@@ -0,0 +1,66 @@
+package com.ashencostha.mqtt.benchmark;
+
+import com.ashencostha.mqtt.Song;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+// SavedSongsActivity devuelve la canción elegida con
+// putExtra("loadedSong", song) y MainActivity la lee con
+// getSerializableExtra(). El Parcel de un extra Serializable usa
+// ObjectOutputStream / ObjectInputStream, que es lo que se mide acá.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class SongSerializationBenchmark {
+
+    private Song song;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        song = Matrices.library(1).get(0);
+        serialized = write(song);
+    }
+
+    private static byte[] write(Song song) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(song);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] marshal() throws IOException {
+        return write(song);
+    }
+
+    @Benchmark
+    public Song unmarshal() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return (Song) in.readObject();
+        }
+    }
+
+    @Benchmark
+    public Song roundTrip() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(write(song)))) {
+            return (Song) in.readObject();
+        }
+    }
+}
@@ -18,21 +18,56 @@
 
 const char* WIFI_SSID = "TeleCentro-9a5b_0_1";
 const char* WIFI_PASS = "NWYGJZZZM4CJ";
+// Modo LAN: con "Usar broker local" activo en la app (mantener apretado
+// "Estado App"), poner acá la IP del celu que muestra ese diálogo.
 const char* MQTT_BROKER    = "broker.emqx.io";
 const int   MQTT_PORT      = 1883;
-const char* MQTT_CLIENT_ID = "esp32_famico_sequencer";
+
+// Identificador del equipo cuando hay varios secuenciadores en el mismo
+// broker (ver DeviceRegistry en la app). Vacío = equipo principal, con los
+// topics de siempre "/simulator/..."; si no, "/simulator/<id>/...".
+const char* DEVICE_ID      = "";
 
 WiFiClient wifiClient;
 PubSubClient mqttClient(wifiClient);
 
-// Topics
-const char* TOPIC_STATUS    = "/simulator/status";   // publish
-const char* TOPIC_STATE     = "/simulator/state";    // subscribe
-const char* TOPIC_TEMPO     = "/simulator/tempo";    // subscribe (bpm o ms/step)
-const char* TOPIC_EDIT      = "/simulator/edit";     // subscribe "r c v"
-const char* TOPIC_PLAY_ROW  = "/simulator/playrow";  // subscribe "r"
-const char* TOPIC_GET_CELL  = "/simulator/getcell";  // subscribe: pedidos / matriz desde Android
-const char* TOPIC_CELL_VAL  = "/simulator/cellval";  // publish : matriz completa hacia Android
+// Topics (se arman en buildTopics() según DEVICE_ID)
+char MQTT_CLIENT_ID[48];      // "esp32_famico_sequencer" o "esp32_famico_sequencer_<id>"
+char TOPIC_STATUS[48];        // publish
+char TOPIC_STATE[48];         // subscribe
+char TOPIC_TEMPO[48];         // subscribe (bpm o ms/step)
+char TOPIC_EDIT[48];          // subscribe "r c v" o lote "r c v;r c v;..."
+char TOPIC_PLAY_ROW[48];      // subscribe "r"
+char TOPIC_GET_CELL[48];      // subscribe: pedidos / matriz desde Android
+char TOPIC_CELL_VAL[48];      // publish : matriz completa hacia Android
+char TOPIC_PING[48];          // subscribe: ping de latencia desde Android
+char TOPIC_PONG[48];          // publish  : eco del ping, sin tocar
+char TOPIC_MATRIX[48];        // publish retained: última matriz conocida
+
+// Comandos para todos los equipos a la vez: el celu publica una sola vez acá
+const char* TOPIC_ALL_STATE = "/simulator/all/state";  // subscribe
+const char* TOPIC_ALL_TEMPO = "/simulator/all/tempo";  // subscribe
+
+void buildTopics() {
+  char ns[32];
+  if (DEVICE_ID[0] == '\0') {
+    snprintf(ns, sizeof(ns), "/simulator");
+    snprintf(MQTT_CLIENT_ID, sizeof(MQTT_CLIENT_ID), "esp32_famico_sequencer");
+  } else {
+    snprintf(ns, sizeof(ns), "/simulator/%s", DEVICE_ID);
+    snprintf(MQTT_CLIENT_ID, sizeof(MQTT_CLIENT_ID), "esp32_famico_sequencer_%s", DEVICE_ID);
+  }
+  snprintf(TOPIC_STATUS,   sizeof(TOPIC_STATUS),   "%s/status",  ns);
+  snprintf(TOPIC_STATE,    sizeof(TOPIC_STATE),    "%s/state",   ns);
+  snprintf(TOPIC_TEMPO,    sizeof(TOPIC_TEMPO),    "%s/tempo",   ns);
+  snprintf(TOPIC_EDIT,     sizeof(TOPIC_EDIT),     "%s/edit",    ns);
+  snprintf(TOPIC_PLAY_ROW, sizeof(TOPIC_PLAY_ROW), "%s/playrow", ns);
+  snprintf(TOPIC_GET_CELL, sizeof(TOPIC_GET_CELL), "%s/getcell", ns);
+  snprintf(TOPIC_CELL_VAL, sizeof(TOPIC_CELL_VAL), "%s/cellval", ns);
+  snprintf(TOPIC_PING,     sizeof(TOPIC_PING),     "%s/ping",    ns);
+  snprintf(TOPIC_PONG,     sizeof(TOPIC_PONG),     "%s/pong",    ns);
+  snprintf(TOPIC_MATRIX,   sizeof(TOPIC_MATRIX),   "%s/matrix",  ns);
+}
 
 // ================================
 //           TFT (ILI9341)
@@ -117,13 +152,19 @@ TaskHandle_t  hMqttTask   = nullptr;
 // ================================
 //       COLA PARA MQTT (publish)
 // ================================
-enum MqttCmdType : uint8_t { MQTT_CMD_STATUS = 0, MQTT_CMD_MATRIX = 1 };
+enum MqttCmdType : uint8_t { MQTT_CMD_STATUS = 0, MQTT_CMD_MATRIX = 1, MQTT_CMD_MATRIX_BIN = 2, MQTT_CMD_PONG = 3 };
 
 struct MqttCommand {
   MqttCmdType type;
   char payload[256];
+  uint16_t len;   // solo para MQTT_CMD_MATRIX_BIN (puede tener ceros)
 };
 
+// Matriz binaria (igual que MatrixCodec en Android):
+// 1 byte cabecera 0xB0|version + filas de 25 bits (4 + 7 + 7 + 7), MSB primero
+constexpr uint8_t MATRIX_BIN_HEADER = 0xB1;
+constexpr int     MATRIX_BIN_SIZE   = 51;
+
 QueueHandle_t queueMqtt = nullptr;
 
 // Parámetros FreeRTOS
@@ -242,6 +283,17 @@ bool gHighlightStep = false;
 // Redibujar matriz cuando la toca MQTT
 volatile bool gMatrixDirty = false;
 
+// Versión de la matriz acordada con Android (ver MatrixSync en la app).
+// Si se edita con los encoders, el celu ya no sabe qué tenemos: se rechazan
+// los deltas hasta que llegue o salga una foto completa.
+volatile uint32_t gMatrixVersion    = 0;
+volatile bool     gMatrixLocalEdits = false;
+
+// La matriz cambió y hay que actualizar el retained de TOPIC_MATRIX.
+// Lo publica la task MQTT, como mucho cada MATRIX_STATE_MIN_MS.
+volatile bool     gMatrixStateDirty = true;
+constexpr uint32_t MATRIX_STATE_MIN_MS = 1000;
+
 // Aux para eventos MQTT
 volatile int  gMqttPlayRow   = 0;
 volatile int  gMqttTempoBpm  = 120;
@@ -633,12 +685,26 @@ void applyMatrixFromString(const String& msg) {
 
   Serial.println("Matrix actualizada desde Android (string)");
   gMatrixDirty = true; // <-- redibuja el loop, no acá
+  gMatrixStateDirty = true;
+}
+
+// Confirma a Android en qué versión quedó la matriz: "@v"
+void sendMatrixVersion() {
+  if (!queueMqtt) return;
+  MqttCommand cmd;
+  cmd.type = MQTT_CMD_MATRIX;
+  snprintf(cmd.payload, sizeof(cmd.payload), "@%lu", (unsigned long)gMatrixVersion);
+  xQueueSend(queueMqtt, &cmd, 0);
 }
 
 // Arma un string con toda la matriz y lo envía vía cola MQTT
 void sendMatrixToAndroid() {
   String out;
-  out.reserve(ROWS * COLS * 4);
+  out.reserve(ROWS * COLS * 4 + 12);
+  out += '@';
+  out += String((unsigned long)gMatrixVersion);
+  out += ' ';
+  gMatrixLocalEdits = false; // el celu va a tener lo mismo que nosotros
 
   for (int i = 0; i < ROWS; i++) {
     for (int j = 0; j < COLS; j++) {
@@ -661,10 +727,121 @@ void sendMatrixToAndroid() {
   Serial.println("Matrix enviada a Android (string)");
 }
 
+// ================================
+//   HELPERS MATRIZ (SYNC BINARIO)
+// ================================
+static inline int matrixBits(int c) { return (c == 0) ? 4 : 7; }
+
+void applyMatrixFromBinary(const byte* payload, unsigned int length) {
+  if (length < MATRIX_BIN_SIZE || payload[0] != MATRIX_BIN_HEADER) {
+    Serial.println("Matrix binaria invalida, se ignora");
+    return;
+  }
+  int bitPos = 8;
+  for (int r = 0; r < ROWS; r++) {
+    for (int c = 0; c < COLS; c++) {
+      int v = 0;
+      for (int b = 0; b < matrixBits(c); b++) {
+        v = (v << 1) | ((payload[bitPos >> 3] >> (7 - (bitPos & 7))) & 1);
+        bitPos++;
+      }
+      matrixVals[r][c] = v;
+    }
+  }
+  Serial.println("Matrix actualizada desde Android (binario)");
+  gMatrixDirty = true;
+  gMatrixStateDirty = true;
+}
+
+// Escribe la matriz empaquetada (MATRIX_BIN_SIZE bytes) a partir de out
+static void packMatrixBinary(char* out) {
+  memset(out, 0, MATRIX_BIN_SIZE);
+  out[0] = (char)MATRIX_BIN_HEADER;
+  int bitPos = 8;
+  for (int r = 0; r < ROWS; r++) {
+    for (int c = 0; c < COLS; c++) {
+      int v = constrain(matrixVals[r][c], 0, (c == 0) ? 15 : 127);
+      for (int b = matrixBits(c) - 1; b >= 0; b--) {
+        if ((v >> b) & 1) out[bitPos >> 3] |= (char)(0x80 >> (bitPos & 7));
+        bitPos++;
+      }
+    }
+  }
+}
+
+void sendMatrixToAndroidBinary() {
+  if (!queueMqtt) return;
+  MqttCommand cmd;
+  cmd.type = MQTT_CMD_MATRIX_BIN;
+  // Sobre de versión "@v " y después la matriz empaquetada
+  int head = snprintf(cmd.payload, sizeof(cmd.payload), "@%lu ", (unsigned long)gMatrixVersion);
+  gMatrixLocalEdits = false;
+  packMatrixBinary(cmd.payload + head);
+  cmd.len = head + MATRIX_BIN_SIZE;
+  xQueueSend(queueMqtt, &cmd, 0);
+  Serial.println("Matrix enviada a Android (binario)");
+}
+
+// Retained en TOPIC_MATRIX: así el celu ve la última matriz apenas se
+// suscribe, aunque el ESP no esté mandando nada. Va en binario para entrar
+// holgado en el buffer de PubSubClient. Con ediciones locales sin confirmar
+// va sin versión: el celu la muestra pero no la toma como base de deltas.
+// Solo desde la task MQTT.
+void publishMatrixState() {
+  char buf[16 + MATRIX_BIN_SIZE];
+  int head = 0;
+  if (!gMatrixLocalEdits) {
+    head = snprintf(buf, sizeof(buf), "@%lu ", (unsigned long)gMatrixVersion);
+  }
+  packMatrixBinary(buf + head);
+  if (mqttClient.publish(TOPIC_MATRIX, (const uint8_t*)buf, head + MATRIX_BIN_SIZE, true)) {
+    gMatrixStateDirty = false;
+  }
+}
+
 // ================================
 //      MQTT CALLBACK
 // ================================
 void mqttCallback(char* topic, byte* payload, unsigned int length) {
+  // Matriz binaria: se procesa con los bytes crudos (puede traer ceros)
+  if (strcmp(topic, TOPIC_GET_CELL) == 0 && length > 0 && (payload[0] & 0xF0) == 0xB0) {
+    applyMatrixFromBinary(payload, length);
+    return;
+  }
+
+  // Foto versionada "@v " + matriz (texto o binaria)
+  if (strcmp(topic, TOPIC_GET_CELL) == 0 && length > 1 && payload[0] == '@') {
+    unsigned int k = 1;
+    uint32_t ver = 0;
+    while (k < length && isdigit(payload[k])) ver = ver * 10 + (payload[k++] - '0');
+    if (k < length && payload[k] == ' ') k++;
+
+    if (k < length && (payload[k] & 0xF0) == 0xB0) {
+      applyMatrixFromBinary(payload + k, length - k);
+    } else {
+      String body;
+      body.reserve(length - k + 1);
+      for (unsigned int i = k; i < length; i++) body += (char)payload[i];
+      applyMatrixFromString(body);
+    }
+    gMatrixVersion    = ver;
+    gMatrixLocalEdits = false;
+    sendMatrixVersion();
+    return;
+  }
+
+  // Ping de latencia: se devuelve igual, lo antes posible
+  if (strcmp(topic, TOPIC_PING) == 0) {
+    if (queueMqtt && length < sizeof(MqttCommand::payload)) {
+      MqttCommand cmd;
+      cmd.type = MQTT_CMD_PONG;
+      memcpy(cmd.payload, payload, length);
+      cmd.payload[length] = '\0';
+      xQueueSend(queueMqtt, &cmd, 0);
+    }
+    return;
+  }
+
   String msg;
   msg.reserve(length+1);
   for (unsigned int i=0;i<length;i++) msg += (char)payload[i];
@@ -672,7 +849,7 @@ void mqttCallback(char* topic, byte* payload, unsigned int length) {
 
   if (!queueEvents) return;
 
-  if (strcmp(topic, TOPIC_STATE) == 0) {
+  if (strcmp(topic, TOPIC_STATE) == 0 || strcmp(topic, TOPIC_ALL_STATE) == 0) {
     Event ev = EV_NONE;
 
     // Normalizamos a mayúsculas para tolerar "PlayAll", "play_all", etc.
@@ -689,7 +866,7 @@ void mqttCallback(char* topic, byte* payload, unsigned int length) {
       xQueueSend(queueEvents, &ev, 0);
     }
   }
-  else if (strcmp(topic, TOPIC_TEMPO) == 0) {
+  else if (strcmp(topic, TOPIC_TEMPO) == 0 || strcmp(topic, TOPIC_ALL_TEMPO) == 0) {
     String s = msg;
     s.trim();
     int val = 0;
@@ -715,14 +892,38 @@ void mqttCallback(char* topic, byte* payload, unsigned int length) {
     }
   }
   else if (strcmp(topic, TOPIC_EDIT) == 0) {
-    int r,c,v;
-    if (sscanf(msg.c_str(), "%d %d %d", &r, &c, &v) == 3) {
-      if (r>=0 && r<ROWS && c>=0 && c<COLS) {
-        if (c==0) v = constrain(v, 0, 15);
-        else      v = constrain(v, 0, 127);
-        matrixVals[r][c] = v;
-        gMatrixDirty = true; // <-- que redibuje el loop
+    // Una o varias ediciones "r c v" separadas por ';' (lote de Android).
+    // Si empieza con "@base:ver;" es un delta versionado: se aplica sólo si
+    // estamos en 'base', y siempre contestamos con nuestra versión.
+    const char* p = msg.c_str();
+    bool versioned = false;
+    bool apply     = true;
+    unsigned long base = 0, ver = 0;
+    if (*p == '@') {
+      versioned = true;
+      apply = (sscanf(p, "@%lu:%lu", &base, &ver) == 2)
+              && base == gMatrixVersion && !gMatrixLocalEdits;
+      const char* sep = strchr(p, ';');
+      p = sep ? sep + 1 : p + strlen(p);
+    }
+    while (apply && *p) {
+      int r,c,v;
+      if (sscanf(p, "%d %d %d", &r, &c, &v) == 3) {
+        if (r>=0 && r<ROWS && c>=0 && c<COLS) {
+          if (c==0) v = constrain(v, 0, 15);
+          else      v = constrain(v, 0, 127);
+          matrixVals[r][c] = v;
+          gMatrixDirty = true; // <-- que redibuje el loop
+          gMatrixStateDirty = true;
+        }
       }
+      const char* sep = strchr(p, ';');
+      if (!sep) break;
+      p = sep + 1;
+    }
+    if (versioned) {
+      if (apply) gMatrixVersion = ver;
+      sendMatrixVersion();
     }
   }
   else if (strcmp(topic, TOPIC_PLAY_ROW) == 0) {
@@ -735,13 +936,17 @@ void mqttCallback(char* topic, byte* payload, unsigned int length) {
   }
   else if (strcmp(topic, TOPIC_GET_CELL) == 0) {
     // Dos usos:
-    // - "SEND_MATRIX" => Android pide que mandemos la matriz actual.
+    // - "SEND_MATRIX" / "SEND_MATRIX BIN" => Android pide la matriz actual (texto / binario).
+    //   (la matriz binaria ya se atendió arriba, con los bytes crudos)
     // - Cualquier otro string => interpretamos como matriz completa para cargar.
     String s = msg;
     s.trim();
     if (s == "SEND_MATRIX") {
       Serial.println("MQTT: pedido de matriz desde Android, enviando matriz actual");
       sendMatrixToAndroid();
+    } else if (s == "SEND_MATRIX BIN") {
+      Serial.println("MQTT: pedido de matriz binaria desde Android");
+      sendMatrixToAndroidBinary();
     } else {
       applyMatrixFromString(s);
     }
@@ -760,7 +965,11 @@ void connectMQTT() {
       mqttClient.subscribe(TOPIC_EDIT);
       mqttClient.subscribe(TOPIC_PLAY_ROW);
       mqttClient.subscribe(TOPIC_GET_CELL);
-      mqttClient.publish(TOPIC_STATUS, "IDLE");
+      mqttClient.subscribe(TOPIC_PING);
+      mqttClient.subscribe(TOPIC_ALL_STATE);
+      mqttClient.subscribe(TOPIC_ALL_TEMPO);
+      mqttClient.publish(TOPIC_STATUS, "IDLE", true);
+      gMatrixStateDirty = true;
     } else {
       Serial.print("rc=");
       Serial.println(mqttClient.state());
@@ -816,14 +1025,27 @@ void vMqttTask(void *pvParameters) {
         while (xQueueReceive(queueMqtt, &cmd, 0) == pdTRUE) {
           switch (cmd.type) {
             case MQTT_CMD_STATUS:
-              mqttClient.publish(TOPIC_STATUS, cmd.payload);
+              // Retained: el celu recibe el último estado apenas se suscribe
+              mqttClient.publish(TOPIC_STATUS, cmd.payload, true);
               break;
             case MQTT_CMD_MATRIX:
               mqttClient.publish(TOPIC_CELL_VAL, cmd.payload);
               break;
+            case MQTT_CMD_PONG:
+              mqttClient.publish(TOPIC_PONG, cmd.payload);
+              break;
+            case MQTT_CMD_MATRIX_BIN:
+              mqttClient.publish(TOPIC_CELL_VAL, (const uint8_t*)cmd.payload, cmd.len, false);
+              break;
           }
         }
       }
+
+      static uint32_t lastMatrixStateMs = 0;
+      if (gMatrixStateDirty && millis() - lastMatrixStateMs >= MATRIX_STATE_MIN_MS) {
+        lastMatrixStateMs = millis();
+        publishMatrixState();
+      }
     }
     vTaskDelay(pdMS_TO_TICKS(MQTT_TASK_PERIOD_MS));
   }
@@ -834,6 +1056,7 @@ void vMqttTask(void *pvParameters) {
 // ================================
 void setup() {
   Serial.begin(115200);
+  buildTopics();
 
   // Métricas: arranca ventana de "reposo" desde el arranque
   initStats();
@@ -1006,6 +1229,8 @@ void loop() {
         matrixVals[selectedRow][selectedCol] =
             constrain(prevVal + d1, 0, 127);
       }
+      gMatrixLocalEdits = true; // Android ya no sabe qué tenemos
+      gMatrixStateDirty = true;
       drawMatrixRow(selectedRow, false);
       drawEditCursor(true);
       drawStatus(STATE_LABELS[(int)state]);